@@ -4,15 +4,28 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
 
+import com.orc.io.AdaptiveReceiveAllocator;
+import com.orc.io.BatchPolicy;
+import com.orc.io.BufferUtils;
+import com.orc.io.FrameAssembler;
+import com.orc.io.LatencyHistogram;
 import com.orc.io.MultiplexAdapter;
+import com.orc.io.SharedMemoryAddress;
 import com.orc.io.SimpleClientContext;
 import com.orc.io.SimpleClientMultiplexer;
+import com.orc.io.TlsStage;
+import com.orc.io.jfr.EventTypes;
+import com.orc.io.jfr.FrameEvent;
+import com.orc.io.jfr.PartialWriteEvent;
 import com.orc.server.EchoServer;
 
 /**
@@ -23,9 +36,19 @@ import com.orc.server.EchoServer;
  * The client will write data whenever the server's channel is writeable and
  * read data whenever the server responds.
  * 
- * In this program throughput is regarded as more important than latency so messages
+ * By default throughput is regarded as more important than latency so messages
  * are queued as they are created off the file rather than sending each message as it
- * is created.
+ * is created.  A {@link BatchPolicy} moves that trade off, from writing every message
+ * on its own to waiting for a batch with a latency budget.
+ * 
+ * Each message's round trip is timed with System.nanoTime() into a
+ * {@link LatencyHistogram}, and with {@link #setRate(int)} messages are sent on a
+ * fixed schedule rather than as fast as possible.
+ * 
+ * Lines of any length can be sent.  One too long for the write buffer is
+ * streamed over as many writes as it takes, and its echo is taken apart by a
+ * {@link FrameAssembler} slice by slice as it arrives, so neither side ever
+ * holds more of it than a buffer's worth.
  * 
  * @author jeff
  * @see EchoMessage
@@ -35,29 +58,51 @@ import com.orc.server.EchoServer;
 public class EchoClient extends MultiplexAdapter {
 
 	/****Setup*/
-	private 						String target;
-	private 						int port;
+	private 						SocketAddress address;
 	private 						String fileName;
+	private 						boolean verbose = true;
+	
+	/****Protocol*/
+	private static final byte 		SEPARATOR = '*';
+	private static final byte 		NEWLINE = '\n';
 	
 	/****IO*/
 	private SimpleClientMultiplexer selector;
 	private ByteBuffer 				outBuff = ByteBuffer.allocateDirect(8 * 1024);//Buffer for writing to server
-	private ByteBuffer 				inBuff = ByteBuffer.allocateDirect(8 * 1024);	//Buffer for reading from server
-	private byte[] 					messageHolder = new byte[ EchoMessage.MAX_LEN ];
+	private AdaptiveReceiveAllocator receiveAllocator = new AdaptiveReceiveAllocator(64, 8 * 1024, 64 * 1024, true);//Sizes the buffer for reading from server
 	private EchoMessage 			msg = new EchoMessage();
+	private FrameAssembler 			framer;
+	private TlsStage 				tls;
+	private long 					maxFrameLength = 64L * 1024 * 1024;
 
 	/****File handling*/
 	private BufferedReader 			data;
 	private byte[] 					nextLine;
+	private int 					nextLineSent = -1;//how much of nextLine is in outBuff, -1 until its header is
+	private boolean 				nextLineSplit;//nextLine is being streamed over several writes
 	private boolean 				fileDone = false;
 	private int 					curMessage = 0;
 	private int 					maxMessage = -1;
+	private int 					rate;
+	private long 					dueNanos;//when the line the rate is holding back can go
+	private BatchPolicy 			batch = BatchPolicy.fillBuffer();
+	private int 					unsent;//bytes at the front of outBuff from a batch already written in part
 	
 	/****Stats data*/
 	private long 					startTime;
 	private long 					processedCount;
 	private long 					processedLag;
 	private float 					aveLag;
+	private long 					startNanos;
+	private long 					finishNanos;
+	private volatile boolean 		finished;
+	private boolean 				exitOnFinish = true;
+	
+	/****Latency, a message's send time is kept by msgNum until it comes back*/
+	private static final int 		SENT_TIMES = 1 << 16;//more messages than this in flight and their times are overwritten
+	private static final long 		MAX_RATE_WAIT_NANOS = 100000;//how late a paced client can be to read an echo
+	private final long[] 			sentNanos = new long[SENT_TIMES];
+	private final LatencyHistogram 	latency = new LatencyHistogram();
 	
 	/**
 	 * The constructor takes the required information neccessary to run the client
@@ -69,9 +114,91 @@ public class EchoClient extends MultiplexAdapter {
 	 * @param fileName	The location of the file to be converted into messages
 	 */
 	public EchoClient(final String target, final int port, final String fileName) {
-		this.target = target;
-		this.port = port;
+		this(new InetSocketAddress(target, port), fileName);
+	}
+	
+	/**
+	 * @param address	The EchoServer's address, TCP, local or shared memory
+	 * @param fileName	The location of the file to be converted into messages
+	 * @see com.orc.io.LocalTransport
+	 * @see SharedMemoryAddress
+	 */
+	public EchoClient(final SocketAddress address, final String fileName) {
+		this.address = address;
 		this.fileName = fileName;
+		this.framer = newFramer();
+	}
+	
+	/**
+	 * Turns the per-message console output on or off, the final stats are
+	 * always printed
+	 * 
+	 * @param verbose True (the default) to write every echoed message to System.out
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * @param exitOnFinish True (the default) to print the stats and exit the JVM
+	 * 					once the last message comes back.  False to close the
+	 * 					connection and return from start() instead, printing
+	 * 					the stats only when verbose
+	 */
+	public void setExitOnFinish(boolean exitOnFinish) {
+		this.exitOnFinish = exitOnFinish;
+	}
+	
+	/**
+	 * Paces the messages, by default they are sent as fast as the server takes them.
+	 * 
+	 * A paced message's latency is measured from when it was due to be sent,
+	 * so if the client falls behind the delay shows up in every message
+	 * behind it rather than going unrecorded.  While it is ahead of the rate
+	 * the client sleeps in short naps rather than spinning
+	 * 
+	 * @param rate Messages per second, 0 for as fast as possible
+	 */
+	public void setRate(int rate) {
+		this.rate = rate;
+	}
+	
+	/**
+	 * Decides how many messages are queued before they are written.  Should
+	 * be set before connect()
+	 * 
+	 * @param batch The policy, {@link BatchPolicy#fillBuffer()} by default
+	 */
+	public void setBatchPolicy(BatchPolicy batch) {
+		this.batch = batch;
+	}
+	
+	/**
+	 * @return The batch policy, with its batch size and queueing delay histograms
+	 */
+	public BatchPolicy getBatchPolicy() {
+		return batch;
+	}
+	
+	/**
+	 * Encrypts the connection to the server.  Should be set before connect(),
+	 * ignored over shared memory
+	 * 
+	 * @param tls The stage, null (the default) for plaintext
+	 */
+	public void setTlsStage(TlsStage tls) {
+		this.tls = tls;
+	}
+	
+	/**
+	 * The longest echo accepted, a longer one is treated as a broken connection.
+	 * Should be set before connect()
+	 * 
+	 * @param maxFrameLength Bytes, not counting the newline.  Default 64MB
+	 */
+	public void setMaxFrameLength(long maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+		this.framer = newFramer();
 	}
 	
 	/**
@@ -81,10 +208,55 @@ public class EchoClient extends MultiplexAdapter {
 	 * @throws IOException
 	 */
 	public void connect() throws IOException {
-		this.selector = new SimpleClientMultiplexer(this, target, port);
+		this.selector = new SimpleClientMultiplexer(this, address);
+		this.selector.setReceiveAllocator(receiveAllocator);
+		this.selector.setTlsStage(tls);
 		this.selector.connect();
 	}
 	
+	/**
+	 * Builds the assembler that turns echoes into messages, before connect() so
+	 * a listener can be fed without a connection.  A FrameEvent is only created
+	 * while a recording has it enabled, so the hot path allocates nothing
+	 * with JFR off
+	 */
+	private FrameAssembler newFramer() {
+		return new FrameAssembler(NEWLINE, maxFrameLength, new FrameAssembler.SliceListener() {
+			private FrameEvent 	frame;
+			private boolean 	parsed;
+			private long 		length;
+			
+			public void onSlice(ByteBuffer slice, boolean first, boolean last) {
+				if (first) {
+					frame = EventTypes.FRAME.isEnabled() ? new FrameEvent() : null;
+					if (frame != null) frame.begin();
+					length = 0;
+				}
+				length += slice.remaining();
+				if (first) {
+					parsed = onMessage(slice);
+				}
+				if (parsed) {
+					msg.appendData(slice);
+				}
+				if (last) {
+					if (parsed) {
+						updateStats(verbose);
+					}
+					if (frame != null) {
+						frame.end();
+						if (frame.shouldCommit()) {
+							frame.length = (int)Math.min(Integer.MAX_VALUE, length);
+							frame.messageNumber = msg.msgNum;
+							frame.commit();
+						}
+						frame = null;
+					}
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Attempt to open the file indicated by the constructor.  
 	 *	
@@ -95,21 +267,72 @@ public class EchoClient extends MultiplexAdapter {
 	}
 	
 	/**
-	 * Connection to server established, mark startTime to track throughput
+	 * Sends the lines of source instead of a file, call instead of openFile()
+	 * 
+	 * @param source The lines to send, closed once they have all been read
+	 */
+	public void setSource(Reader source) {
+		this.data = new BufferedReader(source);
+	}
+	
+	/**
+	 * @return Round trip times of the messages echoed so far, in ns
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * @return The number of messages echoed so far
+	 */
+	public long getProcessedCount() {
+		return processedCount;
+	}
+	
+	/**
+	 * @return System.nanoTime() when the connection was made
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+	
+	/**
+	 * @return System.nanoTime() when the last message came back, 0 until it has
+	 */
+	public long getFinishNanos() {
+		return finishNanos;
+	}
+	
+	/**
+	 * @return True once the last message has come back
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+	
+	/**
+	 * Connection to server established, mark startTime to track throughput.
+	 * Messages go out as soon as they are written, see {@link SimpleClientContext#setNoDelay(boolean)}
 	 */
 	public void onConnect(SocketChannel channel, Object attachment) {
+		try {
+			((SimpleClientContext)attachment).setNoDelay(true);
+		} catch (IOException e) {
+			System.err.println("Error setting TCP_NODELAY: " + e);
+		}
 		startTime = System.currentTimeMillis();
+		startNanos = System.nanoTime();
 	}
 	
 	/**
 	 * Closes the channel connection to the server.
 	 * 
-	 * @param channel	The connection to the server
+	 * @param server	The connection to the server
 	 */
-	public void onDisconnect(final Channel channel) {
-		System.out.println("Disconnecting from server");
+	public void onDisconnect(final SimpleClientContext server) {
+		if (verbose) System.out.println("Disconnecting from server");
 		try {
-			channel.close();
+			server.close();
 		} catch (IOException e) {
 			System.err.println("Error closing channel: " + e);
 		}
@@ -119,28 +342,36 @@ public class EchoClient extends MultiplexAdapter {
 	 * On read is called when the app recieves data from the server
 	 * 
 	 * @param channel		The channel with data
-	 * @param attachment	SimpelClientContext, not used in this instance
+	 * @param attachment	SimpleClientContext, holds the connection's read buffer
 	 */
 	public void onRead(ReadableByteChannel channel, Object attachment) {
+		SimpleClientContext server = (SimpleClientContext)attachment;
+		ByteBuffer inBuff = server.receiveBuffer.buffer();
 
 		try {
 			int bytesread = channel.read(inBuff);
+			server.receiveBuffer.record(bytesread);
 
-			if (bytesread<0) onDisconnect(channel);
+			if (bytesread<0) onDisconnect(server);
 			else {
 				inBuff.flip();
-				
-				if (inBuff.limit()>0)
-					seperateMessages(inBuff);
+				framer.feed(inBuff);
 			}
 		} catch (IOException e) {
 			System.err.println("IOException reading from channel: " + e);
-			onDisconnect(channel);
+			onDisconnect(server);
 		}
 		
-		if (msg!=null && msg.msgNum==maxMessage) {
-			onDisconnect(channel);
-			printStats(true);
+		if (!framer.isInFrame() && msg.msgNum==maxMessage) {
+			finishNanos = System.nanoTime();
+			finished = true;
+			onDisconnect(server);
+			if (exitOnFinish) {
+				printStats(true);
+			} else {
+				if (verbose) printStats(false);
+				if (selector != null) selector.stop();
+			}
 		}
 	}
 	
@@ -162,6 +393,10 @@ public class EchoClient extends MultiplexAdapter {
 		System.out.println("-------------------------------");
 		System.out.println("Total Messages  :" + processedCount);
 		System.out.println("Ave Lag         :" + aveLag + "ms" );
+		System.out.println("Latency(us)     :" + latency.summary(1000));
+		System.out.println("Batching        :" + batch);
+		System.out.println("Batch size      :" + batch.getBatchSizes().summary(1));
+		System.out.println("Queue delay(us) :" + batch.getQueueingDelay().summary(1000));
 		System.out.println("Start Timestamp :" + startTime);
 		System.out.println("Final Timestamp :" + finalTime);
 		
@@ -171,90 +406,36 @@ public class EchoClient extends MultiplexAdapter {
 		if (exit) System.exit(1);
 	}
 	
-	/**
-	 * This method looks for newlines and sets the buffer's possition and limit
-	 * accordingly.  If a partial message is received it will hold it until more data
-	 * arrives.
-	 * 
-	 * @param inBuff	A buffer containing data from the server
-	 * @return			A count of how many messages were successful parsed
-	 */
-	private int seperateMessages(ByteBuffer inBuff) {
-		int limit = inBuff.limit();
-        inBuff.mark();
-        //boolean nextMsg = false;
-        
-        int messageCount = 0;
-        
-        //Step through the buffer looking for newlines
-        while (inBuff.hasRemaining()) {
-            if (inBuff.get() == '\n') {
-				
-                int end = inBuff.position();
-
-                inBuff.reset();
-                inBuff.limit(end - 1);//drop the newline
-
-                //inBuff now is set to 1 message
-                if (onMessage(inBuff)) {
-            		updateStats(true);
-                	messageCount++;
-                }
-
-                inBuff.limit(limit);
-                inBuff.position(end);
-                inBuff.mark();
-				
-            }
-        }
-		
-		inBuff.reset();
-		
-		//Adjust for any incomplete messages, or clear the buffer
-        if (inBuff.hasRemaining() ) {
-            inBuff.compact();
-        } else {
-            inBuff.clear();
-        }
-		
-		return messageCount;
-	}
-	
 	/**
 	 * This method recieves the ByteBuffer with it's limit and possition set to 
-	 * exactly 1 message (without the newline).  The message is put into the class
-	 * EchoMessage - since this is a single-threaded model I don't have to worry about
-	 * something else coming along and changing it.
+	 * the first slice of a message, which is all of it unless it is too long for
+	 * the read buffer.  The header is parsed into the class EchoMessage - since
+	 * this is a single-threaded model I don't have to worry about something else
+	 * coming along and changing it.  The data, in this and any later slices, is
+	 * added by the caller.
 	 * 
-	 * Note: for simplicity's sake I convert the message to a string and parse it down
-	 * This is inefficient, but writing a good set of ByteBuffer parsing utilities is
-	 * beyond the scope of this exercise.
+	 * The numbers are parsed straight out of the buffer, so nothing is allocated
+	 * unless the message is bad
 	 * 
-	 * @param buff		The incoming data, set to exactly one message
+	 * @see BufferUtils
+	 * @param buff		The incoming data, set to the message's first slice
 	 * @return boolean 	True on success, False if parsing failed 
 	 */
 	private boolean onMessage(ByteBuffer buff) {
-		String dataAsString = null;
+		int start = buff.position();
 		msg.reset();
 		try {
-			int len = buff.remaining();
-			buff.get(messageHolder, 0, len );
-
-			//Inefficient, but simple - you need some utils to do buffer manipulation
-			dataAsString = new String(messageHolder, 0, len);
-			String[] dataAsArray = dataAsString.split("\\*");
-
-			msg.sentTimestamp = Long.parseLong(dataAsArray[0]);
-			msg.msgNum = Integer.parseInt(dataAsArray[1]);
-			if (dataAsArray.length ==3) //data can be null
-				msg.dataLine = dataAsArray[2];
-		} catch(Exception e) {
-			e.printStackTrace();
-			System.err.println("Error String:" + dataAsString + ":");
- 			return false;
+			msg.sentTimestamp = BufferUtils.getLong(buff, SEPARATOR);
+			msg.msgNum = BufferUtils.getInt(buff, SEPARATOR);
+			return true; //data can be empty
+		} catch(NumberFormatException e) {
+			System.err.println("Error parsing message: " + e.getMessage());
 		}
 		
-		return true;
+		byte[] bad = new byte[buff.limit() - start];
+		buff.get(start, bad);
+		System.err.println("Error String:" + new String(bad) + ":");
+		return false;
 	}
 	
 	/**
@@ -264,6 +445,10 @@ public class EchoClient extends MultiplexAdapter {
 	 * @return true
 	 */
 	private boolean updateStats(boolean writeOut) {
+		long sent = sentNanos[msg.msgNum & (SENT_TIMES - 1)];
+		if (sent != 0) {
+			latency.record(System.nanoTime() - sent);
+		}
 		long msgLag = (System.currentTimeMillis()-msg.sentTimestamp);
 		processedCount++;
 		processedLag+=msgLag;
@@ -271,7 +456,7 @@ public class EchoClient extends MultiplexAdapter {
 		float throughput = (float)processedCount/((System.currentTimeMillis()-startTime));
 		
 		if (writeOut)
-			System.out.println("Lag Time: " + msgLag + "| Ave lag=" + aveLag + "| Throughput=" + throughput + "msg/ms | MsgNum: " + msg.msgNum + "| data:" + msg.dataLine);
+			System.out.println("Lag Time: " + msgLag + "| Ave lag=" + aveLag + "| Throughput=" + throughput + "msg/ms | MsgNum: " + msg.msgNum + "| data:" + msg.getDataLine());
 		
 		return true;
 	}
@@ -280,27 +465,63 @@ public class EchoClient extends MultiplexAdapter {
 	 * This method attempts to write to the server.  Any data that cannot be written 
 	 * in one pass is retained for whenever the server's channel is not blocking.
 	 * 
-	 * This method starts by attempting to load more data from the file
+	 * This method starts by attempting to load more data from the file, then
+	 * writes if the batch policy says to, the buffer is full, or part of an
+	 * earlier batch is still waiting
 	 */
 	public void onWrite(WritableByteChannel channel, Object attachment) {
 		
 		SimpleClientContext client = (SimpleClientContext)attachment;
 		//in case of missing/unopened file
-		if(data!=null)
-			loadBuffer();//add data to buffer
+		boolean full = data!=null && loadBuffer();//add data to buffer
+		long now = System.nanoTime();
+		if (!full && unsent==0 && !batch.shouldFlush(now, !fileDone)) {
+			waitForRate(now);
+			return;//hold the batch back
+		}
+		batch.flushed(now);
+		
 		outBuff.flip();
 		if (outBuff.hasRemaining()) {
 			try {
-				client.socket.write(outBuff);//write to server
+				int requested = outBuff.remaining();
+				int written = client.channel.write(outBuff);//write to server
+				if (written < requested) {
+					PartialWriteEvent partial = EventTypes.PARTIAL_WRITE.isEnabled() ? new PartialWriteEvent() : null;
+					if (partial != null && partial.shouldCommit()) {
+						partial.connectionId = client.id;
+						partial.requested = requested;
+						partial.written = written;
+						partial.commit();
+					}
+				}
 
 				if (outBuff.hasRemaining() ) {
 		            outBuff.compact();
 		        } else {
 		            outBuff.clear();
 		        }
+				unsent = outBuff.position();
 			} catch (IOException e) {
 				System.err.println("Error writing to client: " + e);
 			}
+		} else {
+			outBuff.clear();//nothing loaded, e.g. ahead of the rate
+		}
+	}
+
+	/**
+	 * Sleeps a paced client that is ahead of its rate, rather than letting the
+	 * loop spin on a writable socket until the next line is due.  The spinning
+	 * client threads would otherwise take the CPU from the server and the
+	 * latency measured would be theirs.  The sleep is kept short so an echo
+	 * that arrives meanwhile isn't read much late
+	 * 
+	 * @param now System.nanoTime()
+	 */
+	private void waitForRate(long now) {
+		if (rate > 0 && outBuff.position() == 0 && nextLine != null && nextLineSent < 0 && dueNanos > now) {
+			LockSupport.parkNanos(Math.min(dueNanos - now, MAX_RATE_WAIT_NANOS));
 		}
 	}
 
@@ -308,16 +529,22 @@ public class EchoClient extends MultiplexAdapter {
 	 * This method reads from a file and creates EchoMessages.
 	 * 
 	 * If the last line read won't fit in the outgoing buffer it is retained for the
-	 * next time the method is called
+	 * next time the method is called.  A line that could never fit is sent a
+	 * buffer at a time instead, header first
+	 * 
+	 * No new line is started once the batch policy says the batch is full
 	 * 
 	 * @see EchoMessage
+	 * @return True if the buffer has to be written before anything more can go
+	 * 			in it, it is full or part way through a streamed line
 	 */
-	private void loadBuffer() {
+	private boolean loadBuffer() {
 		
 		if (fileDone && nextLine==null) {
-			return;
+			return false;
 		}
 			
+		boolean full = false;
 		//while there's room in the buffer
 		do {
 			try {//read from the file
@@ -338,15 +565,55 @@ public class EchoClient extends MultiplexAdapter {
 				System.err.println("Error reading from file: " + e);
 			}
 			
-			//append to the buffer
-			byte[] header = (System.currentTimeMillis() + "*" + curMessage + "*").getBytes();
-			if (nextLine!=null && outBuff.remaining()>nextLine.length + header.length) {
-				outBuff.put(header);
-				outBuff.put(nextLine);
-				outBuff.put("\n".getBytes());
+			if (nextLine!=null && nextLineSent<0) {
+				if (batch.isFull()) {
+					return full;
+				}
+				
+				//hold the line back until it is due, message n is due (n-1)/rate seconds in
+				long nanos = System.nanoTime();
+				if (rate > 0) {
+					dueNanos = startNanos + (curMessage - 1) * 1000000000L / rate;
+					if (dueNanos > nanos) {
+						return full;
+					}
+				}
+				
+				//the header is written straight in as digits, the line follows if it fits
+				long now = System.currentTimeMillis();
+				int header = BufferUtils.asciiLength(now) + 1 + BufferUtils.asciiLength(curMessage) + 1;
+				boolean streamed = header + nextLine.length + 1 > outBuff.capacity();
+				if (outBuff.remaining() < (streamed ? header : header + nextLine.length + 1)) {
+					return true;
+				}
+				BufferUtils.putLong(outBuff, now);
+				outBuff.put(SEPARATOR);
+				BufferUtils.putInt(outBuff, curMessage);
+				outBuff.put(SEPARATOR);
+				nextLineSent = 0;
+				batch.queued(nanos);
+				sentNanos[curMessage & (SENT_TIMES - 1)] = rate > 0 ? dueNanos : nanos;
+			}
+			
+			//append as much of the line as there's room for
+			if (nextLine!=null) {
+				int length = Math.min(outBuff.remaining(), nextLine.length - nextLineSent);
+				outBuff.put(nextLine, nextLineSent, length);
+				nextLineSent += length;
+				if (nextLineSent < nextLine.length || !outBuff.hasRemaining()) {
+					nextLineSplit = true;
+					return true;
+				}
+				outBuff.put(NEWLINE);
 				nextLine=null;
+				nextLineSent = -1;
+				if (nextLineSplit) {//the end of a streamed line goes straight out, its batch already has,
+					nextLineSplit = false;//but carry on so the end of the file is seen with it
+					full = true;
+				}
 			}
 		} while (!fileDone && nextLine==null);
+		return full;
 	}
 	
 	/**
@@ -357,10 +624,20 @@ public class EchoClient extends MultiplexAdapter {
 		selector.run();
 	}
 	
+	/**
+	 * Makes start() return without waiting for the remaining messages.  Can be
+	 * called from any thread
+	 */
+	public void stop() {
+		selector.stop();
+	}
+	
 	/**
 	 * Simple main, accepts arguments for server name/ip, port and file
 	 * 
-	 * If none are passed it will use defaults
+	 * If none are passed it will use defaults.  A name/ip of shm:name connects
+	 * over shared memory, the port is then ignored.  An optional fourth argument
+	 * picks the batching, see {@link BatchPolicy#parse(String)}
 	 * 
 	 * @param args
 	 */
@@ -368,7 +645,8 @@ public class EchoClient extends MultiplexAdapter {
 		int port = 8080;
 		String address = "localhost";
 		String fileName = "c:\\huckfin.txt";
-		if (args.length==3) {
+		BatchPolicy batch = BatchPolicy.fillBuffer();
+		if (args.length>=3) {
 			try {
 				port = Integer.parseInt(args[0]);
 				address = args[1];
@@ -377,8 +655,21 @@ public class EchoClient extends MultiplexAdapter {
 				System.err.println("Invalid port: " + args[0]);
 			}
 		}
+		if (args.length>3) {
+			try {
+				batch = BatchPolicy.parse(args[3]);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Invalid batching: " + e.getMessage());
+			}
+		}
 		
-		EchoClient client = new EchoClient(address, port, fileName);
+		EchoClient client;
+		if (address.startsWith("shm:")) {
+			client = new EchoClient(new SharedMemoryAddress(address.substring(4)), fileName);
+		} else {
+			client = new EchoClient(address, port, fileName);
+		}
+		client.setBatchPolicy(batch);
 
 		try {
 			client.connect();
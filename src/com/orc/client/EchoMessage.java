@@ -1,11 +1,13 @@
 package com.orc.client;
 
+import java.nio.ByteBuffer;
+
 /**
  * This is an object version of the message sent by EchoClient
  * 
  * Each message contains a timestamp
  * A message number
- * and data (optional) up to 4k
+ * and data (optional) of any length
  * 
  * Data is sent in plaintext, * seperated, and terminated with a newline
  * 
@@ -16,23 +18,63 @@ package com.orc.client;
  * 
  * Notice that the second message contained no data but still had a seperator
  * 
+ * The data is kept as bytes in a reused array, it is only turned into a
+ * String if someone asks for one.  Only the first MAX_LEN bytes are kept, the
+ * rest of a longer message is counted and dropped
+ * 
  * 
  * @author jeff
  * @see EchoClient
  */
 public class EchoMessage {
 	
+	/**
+	 * How much of the data is kept
+	 */
 	public static final int MAX_LEN = 4 * 1024;
 	
 	public long sentTimestamp;
-	public String dataLine;
 	public int msgNum;
+	public final byte[] data = new byte[ MAX_LEN ];
+	public int dataLength;
+	public long length;
+	
+	private String dataLine;
+	
+	/**
+	 * Adds the rest of buff to the data.  Call once per slice of a message
+	 * that arrives in pieces
+	 * 
+	 * @param buff	The data, between position and limit.  All of it is consumed
+	 */
+	public void appendData(ByteBuffer buff) {
+		int len = buff.remaining();
+		int kept = Math.min(len, MAX_LEN - dataLength);
+		buff.get(data, dataLength, kept);
+		buff.position(buff.limit());
+		dataLength += kept;
+		length += len;
+		dataLine = null;
+	}
+	
+	/**
+	 * @return The first MAX_LEN bytes of data as a String, created on the
+	 * 			first call after it changes
+	 */
+	public String getDataLine() {
+		if (dataLine == null) {
+			dataLine = new String(data, 0, dataLength);
+		}
+		return dataLine;
+	}
 	
 	/**
 	 * Resets the variables for reuse
 	 */
 	public void reset() {
 		sentTimestamp = -1;
+		dataLength = 0;
+		length = 0;
 		dataLine = null;
 		msgNum = -1;
 	}
@@ -0,0 +1,188 @@
+package com.orc.io;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Hands out per-connection read buffers that size themselves to the traffic.
+ *
+ * Buffer sizes are powers of two between a minimum and a maximum.  A read that
+ * fills its buffer makes the next one 4 times larger, two reads in a row that
+ * would have fitted in a quarter of the buffer make the next one half the size.  A
+ * chatty client sending small messages ends up with a small buffer, a bulk
+ * client with a large one that needs fewer reads.
+ *
+ * SO_RCVBUF is left to the OS unless {@link #setTuneSocketBuffer(boolean)}
+ * turns tuning on, then when a connection's buffer changes size the socket's
+ * SO_RCVBUF is moved with it, never below the size the OS gave the socket to
+ * start with.
+ *
+ * The allocator also keeps count of how many connections are using each size,
+ * see {@link #getSizeDistribution()}.
+ *
+ * All of this runs on the multiplexer's thread, nothing here is thread safe.
+ *
+ * @see AdaptiveReceiveBuffer
+ * @author jeff
+ *
+ */
+public class AdaptiveReceiveAllocator {
+
+	/**
+	 * SO_RCVBUF is kept at this many times the connection's buffer size
+	 * so a single read can't drain the kernel's queue.
+	 */
+	static final int 		SOCKET_BUFFER_MULTIPLE = 4;
+
+	private final int[] 	sizes;
+	private final int 		initialIndex;
+	private final boolean 	direct;
+	private boolean 		tuneSocketBuffer;
+
+	/* connections per size, plus those that haven't read anything yet */
+	private final int[] 	inUse;
+	private int 			unallocated;
+	private long 			grows;
+	private long 			shrinks;
+
+	/**
+	 * @param minSize		The smallest buffer a connection can have, rounded up to a power of 2
+	 * @param initialSize	The size a connection's first buffer will be
+	 * @param maxSize		The largest buffer a connection can have
+	 * @param direct		True for direct buffers, false for heap buffers
+	 */
+	public AdaptiveReceiveAllocator(final int minSize, final int initialSize, final int maxSize, final boolean direct) {
+		if (minSize <= 0 || minSize > initialSize || initialSize > maxSize) {
+			throw new IllegalArgumentException("Need 0 < minSize <= initialSize <= maxSize, got "
+					+ minSize + ", " + initialSize + ", " + maxSize);
+		}
+
+		int count = 0;
+		for (int size = roundUp(minSize); size <= maxSize; size <<= 1) count++;
+		if (count == 0) count = 1;
+
+		sizes = new int[count];
+		int index = 0;
+		for (int size = roundUp(minSize); index < count; size <<= 1) sizes[index++] = size;
+
+		int start = 0;
+		while (start < count - 1 && sizes[start] < initialSize) start++;
+		this.initialIndex = start;
+		this.direct = direct;
+		this.inUse = new int[count];
+	}
+
+	/**
+	 * Turns SO_RCVBUF tuning on or off, it is off by default.
+	 *
+	 * The option is set on sockets that are already connected, and on Linux
+	 * setting SO_RCVBUF at all turns off the kernel's receive buffer
+	 * autotuning for the rest of the connection, going back down to the
+	 * starting size doesn't turn it back on.  Only worth it where autotuning
+	 * is off anyway, or its window is known to be wrong for the traffic
+	 *
+	 * @param tuneSocketBuffer True to move SO_RCVBUF with the buffer, false to leave it to the OS
+	 */
+	public void setTuneSocketBuffer(boolean tuneSocketBuffer) {
+		this.tuneSocketBuffer = tuneSocketBuffer;
+	}
+
+	/**
+	 * Creates the receive buffer for a new connection.  No memory is allocated
+	 * until the connection first reads.
+	 *
+	 * @param socket 	The connection's channel, used for SO_RCVBUF tuning
+	 * @return			The connection's buffer
+	 */
+	public AdaptiveReceiveBuffer newBuffer(SocketChannel socket) {
+		unallocated++;
+		return new AdaptiveReceiveBuffer(this, tuneSocketBuffer ? socket : null, initialIndex);
+	}
+
+	/**
+	 * @return The buffer sizes connections can have, smallest first
+	 */
+	public int[] getSizes() {
+		return sizes.clone();
+	}
+
+	/**
+	 * @return How many open connections have each of the sizes in {@link #getSizes()}
+	 */
+	public int[] getSizeDistribution() {
+		return inUse.clone();
+	}
+
+	/**
+	 * @return How many open connections haven't read yet and so have no buffer
+	 */
+	public int getUnallocatedCount() {
+		return unallocated;
+	}
+
+	/**
+	 * @return How many times a connection's buffer has grown
+	 */
+	public long getGrowCount() {
+		return grows;
+	}
+
+	/**
+	 * @return How many times a connection's buffer has shrunk
+	 */
+	public long getShrinkCount() {
+		return shrinks;
+	}
+
+	/**
+	 * The distribution as size:count pairs, e.g. "unallocated:10 64:3 128:0"
+	 */
+	public String toString() {
+		StringBuilder out = new StringBuilder("unallocated:").append(unallocated);
+		for (int i = 0; i < sizes.length; i++) {
+			out.append(' ').append(sizes[i]).append(':').append(inUse[i]);
+		}
+		return out.append(" grows:").append(grows).append(" shrinks:").append(shrinks).toString();
+	}
+
+	int size(int index) {
+		return sizes[index];
+	}
+
+	int maxIndex() {
+		return sizes.length - 1;
+	}
+
+	boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Keeps the distribution up to date when a buffer changes size.
+	 * -1 stands for a connection without a buffer
+	 */
+	void moved(int fromIndex, int toIndex) {
+		if (fromIndex < 0) unallocated--;
+		else inUse[fromIndex]--;
+
+		if (toIndex < 0) unallocated++;
+		else inUse[toIndex]++;
+
+		if (fromIndex >= 0 && toIndex >= 0) {
+			if (toIndex > fromIndex) grows++;
+			else if (toIndex < fromIndex) shrinks++;
+		}
+	}
+
+	/**
+	 * A connection has closed and no longer counts towards the distribution
+	 */
+	void released(int index) {
+		if (index < 0) unallocated--;
+		else inUse[index]--;
+	}
+
+	private static int roundUp(int size) {
+		int rounded = Integer.highestOneBit(size);
+		return rounded == size ? size : rounded << 1;
+	}
+}
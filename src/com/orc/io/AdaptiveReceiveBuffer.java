@@ -0,0 +1,142 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection's read buffer, sized by an {@link AdaptiveReceiveAllocator}.
+ *
+ * Use it like this in onRead
+ *
+ * <pre>
+ * ByteBuffer buff = context.receiveBuffer.buffer();
+ * int bytesread = channel.read(buff);
+ * context.receiveBuffer.record(bytesread);
+ * </pre>
+ *
+ * buffer() always returns the buffer in "write" mode, ready to be read into.
+ * If the size changes the new buffer is handed out on the next call to
+ * buffer(), with any unprocessed data left in the old one (everything before
+ * its position) copied across.  Don't hang on to the ByteBuffer between reads.
+ *
+ * @author jeff
+ *
+ */
+public class AdaptiveReceiveBuffer {
+
+	private final AdaptiveReceiveAllocator 	allocator;
+	private final SocketChannel 			socket;
+
+	private ByteBuffer 						buffer;
+	private int 							index = -1;
+	private int 							nextIndex;
+	private boolean 						shrinkNext;
+	private int 							socketBufferFloor = -1;
+	private int 							socketBufferSize = -1;
+	private boolean 						released;
+
+	AdaptiveReceiveBuffer(final AdaptiveReceiveAllocator allocator, final SocketChannel socket, final int initialIndex) {
+		this.allocator = allocator;
+		this.socket = socket;
+		this.nextIndex = initialIndex;
+	}
+
+	/**
+	 * @return The buffer to read into next, in write mode
+	 */
+	public ByteBuffer buffer() {
+		if (nextIndex != index && (buffer == null || buffer.position() <= allocator.size(nextIndex))) {
+			resize();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Feeds the result of a read back in, must be called straight after reading
+	 * and before the buffer is flipped.  Reads of nothing, from a spent read
+	 * budget, a partial TLS record or a spurious wakeup, say nothing about
+	 * the traffic and are ignored
+	 *
+	 * @param bytesread What the channel's read returned
+	 */
+	public void record(int bytesread) {
+		if (bytesread <= 0 || buffer == null) {
+			return;
+		}
+
+		if (!buffer.hasRemaining()) {
+			//filled the buffer, there is probably more waiting
+			nextIndex = Math.min(index + 2, allocator.maxIndex());
+			shrinkNext = false;
+		} else if (index > 0 && bytesread <= allocator.size(index - 1) / 2) {
+			if (shrinkNext) {
+				nextIndex = index - 1;
+				shrinkNext = false;
+			} else {
+				shrinkNext = true;
+			}
+		} else {
+			shrinkNext = false;
+		}
+	}
+
+	/**
+	 * @return The current capacity, 0 if nothing has been read yet
+	 */
+	public int capacity() {
+		return buffer == null ? 0 : buffer.capacity();
+	}
+
+	/**
+	 * Drops the buffer and takes the connection out of the allocator's stats.
+	 * Called when the connection closes
+	 */
+	public void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		allocator.released(index);
+		buffer = null;
+	}
+
+	private void resize() {
+		int size = allocator.size(nextIndex);
+		ByteBuffer resized = allocator.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		if (buffer != null) {
+			buffer.flip();
+			resized.put(buffer);
+		}
+
+		allocator.moved(index, nextIndex);
+		buffer = resized;
+		index = nextIndex;
+
+		if (socket != null) {
+			tuneSocketBuffer(size * AdaptiveReceiveAllocator.SOCKET_BUFFER_MULTIPLE);
+		}
+	}
+
+	/**
+	 * Moves SO_RCVBUF in line with the buffer, never going below where the
+	 * OS started it
+	 */
+	private void tuneSocketBuffer(int wanted) {
+		try {
+			if (socketBufferFloor < 0) {
+				socketBufferFloor = socket.getOption(StandardSocketOptions.SO_RCVBUF).intValue();
+				socketBufferSize = socketBufferFloor;
+			}
+
+			int size = Math.max(socketBufferFloor, wanted);
+			if (size != socketBufferSize) {
+				socket.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(size));
+				socketBufferSize = size;
+			}
+		} catch (IOException e) {
+			System.err.println("Error setting SO_RCVBUF: " + e);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.orc.io;
+
+/**
+ * Decides when a sender's queued messages are written, trading latency
+ * against the number of writes.
+ *
+ * <pre>
+ *   fill buffer      write whatever is queued every time the channel is writable,
+ *                    queueing as much as the buffer holds in between (the default)
+ *   flush each       write every message on its own
+ *   fixed(n)         write once n messages are queued
+ *   adaptive(n, us)  write once n messages are queued or the oldest has waited
+ *                    the latency budget, whichever comes first
+ * </pre>
+ *
+ * Whatever the mode a batch is also written when the buffer is full or there
+ * are no more messages to come, so nothing is held back forever.
+ *
+ * The sender tells the policy about every message it queues and every write,
+ * and the policy keeps a histogram of batch sizes and one of how long each
+ * message waited between being queued and written, in ns.  Comparing those
+ * across modes shows where on the throughput/latency curve each one sits.
+ *
+ * Not thread safe, a policy belongs to one connection's sender.
+ *
+ * @author jeff
+ *
+ */
+public class BatchPolicy {
+
+	/**
+	 * The modes described above
+	 */
+	public enum Mode { FILL_BUFFER, FLUSH_EACH, FIXED, ADAPTIVE }
+
+	private final Mode 				mode;
+	private final int 				maxBatch;
+	private final long 				budgetNanos;
+
+	private final LatencyHistogram 	batchSizes = new LatencyHistogram();
+	private final LatencyHistogram 	queueingDelay = new LatencyHistogram();
+
+	/* when each message in the current batch was queued, grown as needed */
+	private long[] 					queuedNanos = new long[64];
+	private int 					batched;
+
+	private BatchPolicy(final Mode mode, final int maxBatch, final long budgetMicros) {
+		if (maxBatch < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatch);
+		}
+		if (budgetMicros < 0) {
+			throw new IllegalArgumentException("Latency budget can't be negative: " + budgetMicros);
+		}
+		this.mode = mode;
+		this.maxBatch = maxBatch;
+		this.budgetNanos = budgetMicros * 1000;
+	}
+
+	/**
+	 * @return A policy that queues as much as fits and writes whenever it can
+	 */
+	public static BatchPolicy fillBuffer() {
+		return new BatchPolicy(Mode.FILL_BUFFER, Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * @return A policy that writes every message as soon as it is queued
+	 */
+	public static BatchPolicy flushEach() {
+		return new BatchPolicy(Mode.FLUSH_EACH, 1, 0);
+	}
+
+	/**
+	 * @param batchSize	Messages per write
+	 * @return A policy that waits for batchSize messages before writing
+	 */
+	public static BatchPolicy fixed(int batchSize) {
+		return new BatchPolicy(Mode.FIXED, batchSize, 0);
+	}
+
+	/**
+	 * @param maxBatch		The most messages per write
+	 * @param budgetMicros	The longest a message waits for others to join it
+	 * @return A policy that writes at maxBatch messages or when the oldest
+	 * 			has waited budgetMicros
+	 */
+	public static BatchPolicy adaptive(int maxBatch, long budgetMicros) {
+		return new BatchPolicy(Mode.ADAPTIVE, maxBatch, budgetMicros);
+	}
+
+	/**
+	 * Parses a policy from the command line
+	 *
+	 * <pre>
+	 *   fill | each | fixed:n | adaptive:n:us
+	 * </pre>
+	 *
+	 * @throws IllegalArgumentException if spec isn't one of those
+	 */
+	public static BatchPolicy parse(String spec) {
+		String[] parts = spec.split(":");
+		try {
+			if (parts.length == 1 && parts[0].equals("fill")) {
+				return fillBuffer();
+			} else if (parts.length == 1 && parts[0].equals("each")) {
+				return flushEach();
+			} else if (parts.length == 2 && parts[0].equals("fixed")) {
+				return fixed(Integer.parseInt(parts[1]));
+			} else if (parts.length == 3 && parts[0].equals("adaptive")) {
+				return adaptive(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+			}
+		} catch (NumberFormatException e) {
+			//falls through to the error below
+		}
+		throw new IllegalArgumentException("Expected fill, each, fixed:n or adaptive:n:us, not " + spec);
+	}
+
+	/**
+	 * Records a message added to the current batch
+	 *
+	 * @param now	System.nanoTime()
+	 */
+	public void queued(long now) {
+		if (batched == queuedNanos.length) {
+			long[] grown = new long[batched * 2];
+			System.arraycopy(queuedNanos, 0, grown, 0, batched);
+			queuedNanos = grown;
+		}
+		queuedNanos[batched++] = now;
+	}
+
+	/**
+	 * @return True if no more messages should join the current batch
+	 */
+	public boolean isFull() {
+		return batched >= maxBatch;
+	}
+
+	/**
+	 * @param now	System.nanoTime()
+	 * @param more	False if no more messages are coming, the batch is written
+	 * 				whatever its size
+	 * @return True if the current batch should be written now
+	 */
+	public boolean shouldFlush(long now, boolean more) {
+		if (batched == 0) {
+			return false;
+		}
+		switch (mode) {
+		case FIXED:
+			return !more || batched >= maxBatch;
+		case ADAPTIVE:
+			return !more || batched >= maxBatch || now - queuedNanos[0] >= budgetNanos;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Records the current batch as written and starts a new one
+	 *
+	 * @param now	System.nanoTime()
+	 */
+	public void flushed(long now) {
+		if (batched == 0) {
+			return;
+		}
+		batchSizes.record(batched);
+		for (int i = 0; i < batched; i++) {
+			queueingDelay.record(now - queuedNanos[i]);
+		}
+		batched = 0;
+	}
+
+	/**
+	 * @return The number of messages in the current batch
+	 */
+	public int getBatched() {
+		return batched;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return Messages per write
+	 */
+	public LatencyHistogram getBatchSizes() {
+		return batchSizes;
+	}
+
+	/**
+	 * @return How long each message waited to be written, in ns
+	 */
+	public LatencyHistogram getQueueingDelay() {
+		return queueingDelay;
+	}
+
+	public String toString() {
+		switch (mode) {
+		case FLUSH_EACH:
+			return "each";
+		case FIXED:
+			return "fixed:" + maxBatch;
+		case ADAPTIVE:
+			return "adaptive:" + maxBatch + ":" + budgetNanos / 1000;
+		default:
+			return "fill";
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The channel handed to onRead when a {@link FairReadScheduler} is in use.
+ *
+ * Reads are cut short once the connection has used up its budget for the
+ * current pass of the loop (or its token bucket), after which they return 0.
+ * Writes and close go straight through to the socket.
+ *
+ * One of these is created per connection when it is accepted, so reading
+ * through it doesn't allocate.
+ *
+ * @author jeff
+ *
+ */
+public class BudgetedChannel implements ByteChannel {
+
+	private final SocketChannel 		socket;
+	private final FairReadScheduler 	scheduler;
+
+	private long 						pass = -1;
+	private int 						passRemaining;
+
+	/* token bucket, only used when the scheduler is rate limiting */
+	long 								tokens;
+	long 								lastRefill;
+	boolean 							deferred;
+
+	BudgetedChannel(final SocketChannel socket, final FairReadScheduler scheduler, final long burstBytes, final long now) {
+		this.socket = socket;
+		this.scheduler = scheduler;
+		this.tokens = burstBytes;
+		this.lastRefill = now;
+	}
+
+	/**
+	 * Reads no more than the connection has left in its budget
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (pass != scheduler.currentPass()) {
+			pass = scheduler.currentPass();
+			passRemaining = scheduler.bytesPerPass();
+		}
+
+		long allowed = passRemaining;
+		if (scheduler.isRateLimited()) {
+			allowed = Math.min(allowed, tokens);
+		}
+		if (allowed <= 0) {
+			return 0;
+		}
+
+		int limit = dst.limit();
+		if (dst.remaining() > allowed) {
+			dst.limit(dst.position() + (int)allowed);
+		}
+
+		int bytesread;
+		try {
+			bytesread = socket.read(dst);
+		} finally {
+			dst.limit(limit);
+		}
+
+		if (bytesread > 0) {
+			passRemaining -= bytesread;
+			tokens -= bytesread;
+		}
+		return bytesread;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return socket.write(src);
+	}
+
+	public boolean isOpen() {
+		return socket.isOpen();
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Tops the bucket up for the time elapsed since the last refill
+	 */
+	void refill(long now, long bytesPerSecond, long burstBytes) {
+		long elapsed = now - lastRefill;
+		long added = (long)(elapsed * (double)bytesPerSecond / 1000000000L);
+		if (added > 0) {
+			tokens = Math.min(burstBytes, tokens + added);
+			lastRefill = now;
+		}
+	}
+}
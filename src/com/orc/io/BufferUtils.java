@@ -0,0 +1,183 @@
+package com.orc.io;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes numbers as ASCII digits directly in a ByteBuffer, for text
+ * protocols such as the EchoClient's
+ *
+ * <pre>
+ * 1210630906171*22*This is a message\n
+ * </pre>
+ *
+ * Nothing here allocates except to build the message of an exception, so a
+ * header can be written or parsed without the String concatenation,
+ * String.split and Long.parseLong it would otherwise take.
+ *
+ * All methods work relative to the buffer's position, like ByteBuffer's own
+ * get and put.  When a read fails the position is left where it was.
+ *
+ * @author jeff
+ *
+ */
+public final class BufferUtils {
+
+	/* 10^1 to 10^18, every power of ten a long can hold */
+	private static final long[] 	POWERS_OF_TEN = new long[18];
+
+	static {
+		long power = 1;
+		for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+			power *= 10;
+			POWERS_OF_TEN[i] = power;
+		}
+	}
+
+	private BufferUtils() {}
+
+	/**
+	 * @return The number of bytes putLong writes for value, including any minus sign
+	 */
+	public static int asciiLength(long value) {
+		//negatives reach one further than positives, so Long.MIN_VALUE works too
+		long negated = value < 0 ? value : -value;
+		int digits = 1;
+		while (digits <= POWERS_OF_TEN.length && negated <= -POWERS_OF_TEN[digits - 1]) {
+			digits++;
+		}
+		return value < 0 ? digits + 1 : digits;
+	}
+
+	/**
+	 * Writes value as ASCII digits, with a leading '-' if it is negative
+	 *
+	 * @throws BufferOverflowException if there isn't room for all of it, nothing is written
+	 */
+	public static void putLong(ByteBuffer buffer, long value) {
+		int length = asciiLength(value);
+		if (buffer.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+
+		int start = buffer.position();
+		int index = start + length;
+		long negated = value < 0 ? value : -value;
+		do {
+			buffer.put(--index, (byte)('0' - (negated % 10)));
+			negated /= 10;
+		} while (negated != 0);
+		if (value < 0) {
+			buffer.put(start, (byte)'-');
+		}
+		buffer.position(start + length);
+	}
+
+	/**
+	 * @see #putLong(ByteBuffer, long)
+	 */
+	public static void putInt(ByteBuffer buffer, int value) {
+		putLong(buffer, value);
+	}
+
+	/**
+	 * Parses an optional '-' followed by digits, stopping at the first byte that
+	 * isn't a digit or at the limit.  The position is left on that byte
+	 *
+	 * @throws NumberFormatException if there are no digits or the value doesn't fit in a long
+	 */
+	public static long getLong(ByteBuffer buffer) {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		boolean negative = start < limit && buffer.get(start) == '-';
+
+		//accumulated as a negative number, as Long.parseLong does, so Long.MIN_VALUE parses
+		long bound = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long boundOverTen = bound / 10;
+		long result = 0;
+		int index = negative ? start + 1 : start;
+		int firstDigit = index;
+		for (; index < limit; index++) {
+			int digit = buffer.get(index) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			if (result < boundOverTen) {
+				throw new NumberFormatException("Number at " + start + " is too long");
+			}
+			result *= 10;
+			if (result < bound + digit) {
+				throw new NumberFormatException("Number at " + start + " is too long");
+			}
+			result -= digit;
+		}
+		if (index == firstDigit) {
+			throw new NumberFormatException("Expected a digit at " + index);
+		}
+
+		buffer.position(index);
+		return negative ? result : -result;
+	}
+
+	/**
+	 * @see #getLong(ByteBuffer)
+	 * @throws NumberFormatException if there are no digits or the value doesn't fit in an int
+	 */
+	public static int getInt(ByteBuffer buffer) {
+		int start = buffer.position();
+		long value = getLong(buffer);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			buffer.position(start);
+			throw new NumberFormatException("Number at " + start + " is too big for an int");
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Parses a numeric field ending in delimiter, or at the limit for the last
+	 * field.  The delimiter is consumed
+	 *
+	 * @throws NumberFormatException if the field isn't all digits or doesn't fit in a long
+	 */
+	public static long getLong(ByteBuffer buffer, byte delimiter) {
+		int start = buffer.position();
+		long value = getLong(buffer);
+		skipDelimiter(buffer, delimiter, start);
+		return value;
+	}
+
+	/**
+	 * @see #getLong(ByteBuffer, byte)
+	 * @throws NumberFormatException if the field isn't all digits or doesn't fit in an int
+	 */
+	public static int getInt(ByteBuffer buffer, byte delimiter) {
+		int start = buffer.position();
+		int value = getInt(buffer);
+		skipDelimiter(buffer, delimiter, start);
+		return value;
+	}
+
+	/**
+	 * @return The absolute index of the first b between position and limit, or -1
+	 */
+	public static int indexOf(ByteBuffer buffer, byte b) {
+		for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++) {
+			if (buffer.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void skipDelimiter(ByteBuffer buffer, byte delimiter, int start) {
+		int index = buffer.position();
+		if (index == buffer.limit()) {
+			return;
+		}
+		if (buffer.get(index) != delimiter) {
+			buffer.position(start);
+			throw new NumberFormatException("Expected '" + (char)delimiter + "' at " + index);
+		}
+		buffer.position(index + 1);
+	}
+}
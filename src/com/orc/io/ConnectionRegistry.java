@@ -0,0 +1,119 @@
+package com.orc.io;
+
+/**
+ * Gives every connection a long id so it can be found again without its
+ * {@link java.nio.channels.SelectionKey}.
+ *
+ * A multiplexer with a registry registers each connection as it is accepted
+ * or connected; the id is stored in {@link SimpleClientContext#id} and the
+ * connection is unregistered when {@link SimpleClientContext#close()} is called.
+ * A strategy can then send to "connection 4711" with get(4711), or broadcast
+ * with forEach.
+ *
+ * Ids start at 1.  Closed connections' ids are recycled oldest first, which
+ * keeps ids small and the map dense while putting as much time as possible
+ * between a connection closing and its id being handed out again.
+ *
+ * Lookup, register and unregister are O(1) and, once the tables are big enough,
+ * allocation free.  Not thread safe, use it from the multiplexer's thread.
+ *
+ * @see LongObjectHashMap
+ * @author jeff
+ *
+ */
+public class ConnectionRegistry {
+
+	private final LongObjectHashMap<SimpleClientContext> connections;
+
+	/* ids waiting to be reused, a ring so the oldest goes first */
+	private long[] 				freeIds;
+	private int 				freeHead;
+	private int 				freeCount;
+	private long 				nextId = 1;
+
+	/**
+	 * @param expectedConnections How many connections to size the tables for
+	 */
+	public ConnectionRegistry(final int expectedConnections) {
+		connections = new LongObjectHashMap<SimpleClientContext>(expectedConnections);
+		freeIds = new long[Math.max(16, expectedConnections)];
+	}
+
+	/**
+	 * Assigns the connection an id and stores it in {@link SimpleClientContext#id}
+	 *
+	 * @param context	A connection that isn't registered yet
+	 * @return			The connection's id
+	 */
+	public long register(SimpleClientContext context) {
+		if (context.registry != null) {
+			throw new IllegalStateException("Connection " + context.id + " is already registered");
+		}
+
+		long id;
+		if (freeCount > 0) {
+			id = freeIds[freeHead];
+			freeHead = (freeHead + 1) % freeIds.length;
+			freeCount--;
+		} else {
+			id = nextId++;
+		}
+
+		context.id = id;
+		context.registry = this;
+		connections.put(id, context);
+		return id;
+	}
+
+	/**
+	 * Removes the connection and frees its id for reuse
+	 *
+	 * @param context 	A connection registered with this registry
+	 * @return 			False if it wasn't registered here
+	 */
+	public boolean unregister(SimpleClientContext context) {
+		if (context.registry != this || connections.get(context.id) != context) {
+			return false;
+		}
+
+		connections.remove(context.id);
+		context.registry = null;
+
+		if (freeCount == freeIds.length) {
+			long[] grown = new long[freeIds.length * 2];
+			for (int i = 0; i < freeCount; i++) {
+				grown[i] = freeIds[(freeHead + i) % freeIds.length];
+			}
+			freeIds = grown;
+			freeHead = 0;
+		}
+		freeIds[(freeHead + freeCount) % freeIds.length] = context.id;
+		freeCount++;
+		return true;
+	}
+
+	/**
+	 * @param id	A connection id
+	 * @return		The connection, or null if no open connection has that id
+	 */
+	public SimpleClientContext get(long id) {
+		return connections.get(id);
+	}
+
+	/**
+	 * @return The number of registered connections
+	 */
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	 * Calls visitor for every registered connection without allocating.
+	 *
+	 * Connections must not be registered or closed from inside the visitor,
+	 * note any that need closing and close them after forEach returns
+	 */
+	public void forEach(LongObjectHashMap.Visitor<? super SimpleClientContext> visitor) {
+		connections.forEach(visitor);
+	}
+}
@@ -0,0 +1,77 @@
+package com.orc.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A free list of direct buffers, all the same size.
+ *
+ * Direct buffers are slow to allocate and are only given back to the OS when
+ * the GC gets round to it, so connections borrow them while they have data
+ * in flight and hand them back as soon as they are empty.  An idle
+ * connection holds none, and a busy server needs about as many as it has
+ * connections mid-transfer.
+ *
+ * At most maxPooled buffers are kept, any more that are released are left
+ * for the GC.  Everything runs on the multiplexer's thread, nothing here is
+ * thread safe.
+ *
+ * @author jeff
+ *
+ */
+public class DirectBufferPool {
+
+	private final int 						bufferSize;
+	private final int 						maxPooled;
+	private final ArrayDeque<ByteBuffer> 	free = new ArrayDeque<ByteBuffer>();
+	private long 							allocated;
+
+	/**
+	 * @param bufferSize	Capacity of every buffer
+	 * @param maxPooled		The most free buffers kept for reuse
+	 */
+	public DirectBufferPool(final int bufferSize, final int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return A cleared buffer, from the pool if there is one
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.pollFirst();
+		if (buffer == null) {
+			allocated++;
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back, it mustn't be used afterwards
+	 */
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		if (free.size() < maxPooled) {
+			free.addFirst(buffer);//most recently used first, it is more likely to be in cache
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return How many buffers have been allocated since the pool was created
+	 */
+	public long getAllocatedCount() {
+		return allocated;
+	}
+
+	/**
+	 * @return How many free buffers are waiting to be reused
+	 */
+	public int getPooledCount() {
+		return free.size();
+	}
+}
@@ -0,0 +1,159 @@
+package com.orc.io;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps one busy connection from starving the rest of a {@link SimpleServerMultiplexer}.
+ *
+ * Every connection gets a byte budget for each pass of the multiplexer's loop.
+ * Once a connection has read its budget its reads return 0 until the next pass,
+ * so a listener that drains its channel in a loop can't monopolise the thread.
+ *
+ * Optionally each connection also has a token bucket limiting its long run
+ * read rate.  A connection with an empty bucket has OP_READ taken out of its
+ * interest set and waits in a ready queue; the data stays in the kernel until
+ * the bucket has refilled and the connection is put back into the selector.
+ * Refilled means a pass's budget worth of tokens, or the whole bucket if that
+ * is smaller, rather than the first few bytes, so a connection held to its
+ * rate is woken for a reasonable read instead of on every pass.
+ * Deferral and a listener's {@link SimpleClientContext#pauseReads()} are
+ * combined by the context, so reads only resume once neither applies.
+ *
+ * The multiplexer only sees bytes, so budgets are in bytes rather than frames.
+ *
+ * @see BudgetedChannel
+ * @author jeff
+ *
+ */
+public class FairReadScheduler {
+
+	private final int 		bytesPerPass;
+	private final long 		bytesPerSecond;
+	private final long 		burstBytes;
+	private final long 		resumeTokens;
+
+	private final ArrayDeque<SimpleClientContext> deferred = new ArrayDeque<SimpleClientContext>();
+	private long 			pass;
+
+	/**
+	 * A scheduler with a per pass budget and no rate limit
+	 *
+	 * @param bytesPerPass	The most a connection can read in one pass of the loop
+	 */
+	public FairReadScheduler(final int bytesPerPass) {
+		this(bytesPerPass, 0, 0);
+	}
+
+	/**
+	 * @param bytesPerPass		The most a connection can read in one pass of the loop
+	 * @param bytesPerSecond	The rate each connection's bucket refills at, 0 for no limit
+	 * @param burstBytes		The size of each connection's bucket
+	 */
+	public FairReadScheduler(final int bytesPerPass, final long bytesPerSecond, final long burstBytes) {
+		if (bytesPerPass <= 0) throw new IllegalArgumentException("bytesPerPass must be positive: " + bytesPerPass);
+		if (bytesPerSecond > 0 && burstBytes <= 0) throw new IllegalArgumentException("burstBytes must be positive: " + burstBytes);
+		this.bytesPerPass = bytesPerPass;
+		this.bytesPerSecond = bytesPerSecond;
+		this.burstBytes = burstBytes;
+		this.resumeTokens = Math.min(bytesPerPass, burstBytes);
+	}
+
+	/**
+	 * Gives a newly accepted connection its budgeted channel
+	 *
+	 * @param context The connection's context, socket and key must already be set
+	 */
+	void register(SimpleClientContext context) {
+		context.budget = new BudgetedChannel(context.socket, this, burstBytes, System.nanoTime());
+	}
+
+	/**
+	 * Called at the top of each pass of the loop.  Starts a new budget period and
+	 * puts deferred connections whose buckets have refilled back into the selector
+	 *
+	 * @param now System.nanoTime()
+	 */
+	void beginPass(long now) {
+		pass++;
+
+		for (int n = deferred.size(); n > 0; n--) {
+			SimpleClientContext context = deferred.poll();
+			SelectionKey key = context.key;
+			if (!key.isValid()) {
+				continue;
+			}
+
+			context.budget.refill(now, bytesPerSecond, burstBytes);
+			if (context.budget.tokens >= resumeTokens) {
+				context.budget.deferred = false;
+				context.updateReadInterest();
+			} else {
+				deferred.offer(context);
+			}
+		}
+	}
+
+	/**
+	 * Decides whether a readable connection may be dispatched this pass
+	 *
+	 * @param context	The readable connection
+	 * @param now		System.nanoTime()
+	 * @return			True to dispatch, false if the connection has been deferred
+	 */
+	boolean admit(SimpleClientContext context, long now) {
+		BudgetedChannel budget = context.budget;
+		if (bytesPerSecond <= 0) {
+			return true;
+		}
+
+		budget.refill(now, bytesPerSecond, burstBytes);
+		if (!budget.deferred && budget.tokens >= resumeTokens) {
+			return true;
+		}
+
+		if (!budget.deferred) {
+			budget.deferred = true;
+			deferred.offer(context);
+		}
+		context.updateReadInterest();//in case anything put OP_READ back while it waited
+		return false;
+	}
+
+	/**
+	 * @param now System.nanoTime()
+	 * @return How long the selector may block for in ms, 0 to block until an event
+	 */
+	long selectTimeout(long now) {
+		if (deferred.isEmpty()) {
+			return 0;
+		}
+
+		long soonest = Long.MAX_VALUE;
+		for (SimpleClientContext context : deferred) {
+			long missing = resumeTokens - context.budget.tokens;
+			long elapsed = now - context.budget.lastRefill;
+			soonest = Math.min(soonest, missing * 1000000000L / bytesPerSecond - elapsed);
+		}
+		return Math.max(1, soonest / 1000000);
+	}
+
+	int bytesPerPass() {
+		return bytesPerPass;
+	}
+
+	long currentPass() {
+		return pass;
+	}
+
+	boolean isRateLimited() {
+		return bytesPerSecond > 0;
+	}
+
+	/**
+	 * @return The number of connections waiting for their buckets to refill
+	 */
+	public int deferredCount() {
+		return deferred.size();
+	}
+}
@@ -0,0 +1,115 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of delimited frames, such as newline terminated lines, into
+ * frames without ever needing a whole frame in memory.
+ *
+ * Each read is passed to {@link #feed(ByteBuffer)}, which hands the listener
+ * every frame it can find as one or more slices of the read buffer
+ *
+ * - a frame that fits in the buffer arrives whole, as a single slice that is
+ *   both first and last
+ * - a frame that doesn't is streamed: once a partial frame fills the buffer it
+ *   is passed on as a first slice, every later read adds another, and the
+ *   slice ending at the delimiter is the last
+ *
+ * So small messages can be parsed in place, and a multi-megabyte one costs no
+ * more memory than the read buffer; it is up to the listener whether to copy,
+ * digest or forward the slices.  A frame growing past the maximum length is
+ * treated as a broken connection.
+ *
+ * Slices are the read buffer itself with its position and limit moved, so
+ * they are only valid during the callback.
+ *
+ * @author jeff
+ *
+ */
+public class FrameAssembler {
+
+	/**
+	 * Receives the frames
+	 */
+	public interface SliceListener {
+		/**
+		 * @param slice	Part of a frame between position and limit, without the
+		 * 				delimiter.  Only valid during the call
+		 * @param first	True for the frame's first slice
+		 * @param last	True for the frame's last slice
+		 */
+		public void onSlice(ByteBuffer slice, boolean first, boolean last);
+	}
+
+	private final byte 				delimiter;
+	private final long 				maxFrameLength;
+	private final SliceListener 	listener;
+
+	private boolean 				inFrame;
+	private long 					frameLength;
+
+	/**
+	 * @param delimiter			The byte ending each frame
+	 * @param maxFrameLength	The longest frame allowed, not counting the delimiter
+	 * @param listener			Called with each slice
+	 */
+	public FrameAssembler(final byte delimiter, final long maxFrameLength, final SliceListener listener) {
+		this.delimiter = delimiter;
+		this.maxFrameLength = maxFrameLength;
+		this.listener = listener;
+	}
+
+	/**
+	 * Passes on everything it can from a read, and compacts the buffer ready
+	 * for the next one.  Whatever is left in the buffer is the start of a frame
+	 * small enough to wait for the rest of
+	 *
+	 * @param buffer	The read buffer, flipped.  Left in write mode
+	 * @return			The number of frames completed
+	 * @throws IOException if a frame is longer than maxFrameLength
+	 */
+	public int feed(ByteBuffer buffer) throws IOException {
+		int limit = buffer.limit();
+		int frames = 0;
+
+		int end;
+		while ((end = BufferUtils.indexOf(buffer, delimiter)) >= 0) {
+			grow(end - buffer.position());
+			buffer.limit(end);
+			listener.onSlice(buffer, !inFrame, true);
+			buffer.limit(limit);
+			buffer.position(end + 1);
+
+			inFrame = false;
+			frameLength = 0;
+			frames++;
+		}
+
+		//stream the rest if it is part of a frame already being streamed, or can't fit
+		if (buffer.hasRemaining() && (inFrame || buffer.position() == 0 && limit == buffer.capacity())) {
+			grow(buffer.remaining());
+			listener.onSlice(buffer, !inFrame, false);
+			buffer.limit(limit);
+			buffer.position(limit);
+			inFrame = true;
+		}
+
+		buffer.compact();
+		return frames;
+	}
+
+	/**
+	 * @return True between the first and last slice of a streamed frame
+	 */
+	public boolean isInFrame() {
+		return inFrame;
+	}
+
+	private void grow(int bytes) throws IOException {
+		frameLength += bytes;
+		if (frameLength > maxFrameLength) {
+			throw new IOException("Frame longer than " + maxFrameLength + " bytes");
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.orc.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single producer, single consumer ring of pre-allocated frame slots.
+ *
+ * Every slot owns a heap ByteBuffer of the maximum frame size, allocated up
+ * front, so passing a frame from one thread to the other is a copy into a slot
+ * and two ordered writes of a sequence number.  Neither side locks or allocates.
+ *
+ * The producer claims the next slot, fills it and publishes it; the consumer
+ * peeks at the oldest published slot, uses it and releases it.  Sequences only
+ * ever increase and the slot index is the sequence masked by the ring's size.
+ *
+ * @see OffloadStage
+ * @author jeff
+ *
+ */
+class FrameRing {
+
+	final SimpleClientContext[] contexts;
+	final long[] 				connectionIds;
+	final ByteBuffer[] 			buffers;
+
+	private final int 			mask;
+
+	/* next sequence to publish, only written by the producer */
+	private final AtomicLong 	tail = new AtomicLong();
+	/* next sequence to consume, only written by the consumer */
+	private final AtomicLong 	head = new AtomicLong();
+
+	/* each side's last look at the other's sequence, saves touching its cache line */
+	private long 				cachedHead;
+	private long 				cachedTail;
+
+	/**
+	 * @param size				Number of slots, rounded up to a power of 2
+	 * @param maxFrameLength	Capacity of each slot's buffer
+	 */
+	FrameRing(final int size, final int maxFrameLength) {
+		int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+		contexts = new SimpleClientContext[capacity];
+		connectionIds = new long[capacity];
+		buffers = new ByteBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			buffers[i] = ByteBuffer.allocate(maxFrameLength);
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Producer side
+	 *
+	 * @return The index of a free slot, cleared and ready to fill, or -1 if the ring is full
+	 */
+	int claim() {
+		long next = tail.get();
+		if (next - cachedHead > mask) {
+			cachedHead = head.get();
+			if (next - cachedHead > mask) {
+				return -1;
+			}
+		}
+		int index = (int)next & mask;
+		buffers[index].clear();
+		return index;
+	}
+
+	/**
+	 * Producer side
+	 *
+	 * @return The number of slots that can be claimed before the consumer releases any
+	 */
+	int free() {
+		cachedHead = head.get();
+		return mask + 1 - (int)(tail.get() - cachedHead);
+	}
+
+	/**
+	 * @return The number of slots
+	 */
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Producer side, makes the slot returned by the last claim() visible to the consumer
+	 */
+	void publish() {
+		tail.lazySet(tail.get() + 1);
+	}
+
+	/**
+	 * Consumer side
+	 *
+	 * @return The index of the oldest published slot, or -1 if there isn't one
+	 */
+	int peek() {
+		long next = head.get();
+		if (next >= cachedTail) {
+			cachedTail = tail.get();
+			if (next >= cachedTail) {
+				return -1;
+			}
+		}
+		return (int)next & mask;
+	}
+
+	/**
+	 * Consumer side, hands the slot returned by the last peek() back to the producer
+	 */
+	void release() {
+		int index = (int)head.get() & mask;
+		contexts[index] = null;
+		head.lazySet(head.get() + 1);
+	}
+}
@@ -0,0 +1,139 @@
+package com.orc.io;
+
+/**
+ * A fixed size histogram of latencies, or any other non-negative long.
+ *
+ * Values are bucketed by their highest set bit and then split into 8 linear
+ * sub-buckets, so anything recorded is reported to within 12.5% whether it is
+ * 50ns or 5s.  Recording is a couple of shifts and an array increment; nothing
+ * is allocated after construction.
+ *
+ * Not thread safe.  Reading from another thread while values are recorded
+ * gives an approximate picture, which is usually all a report needs.
+ *
+ * @author jeff
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int 	SUB_BITS = 3;
+	private static final int 	SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final long[] 		counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+	private long 				count;
+	private long 				sum;
+	private long 				min = Long.MAX_VALUE;
+	private long 				max;
+
+	/**
+	 * @param value The value to record, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if (value < min) min = value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * @param p A percentile between 0.0 and 1.0
+	 * @return	The upper bound of the bucket holding that percentile, 0 if empty
+	 */
+	public long percentile(double p) {
+		if (count == 0) return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(p * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, upperBound(i));
+			}
+		}
+		return max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double)sum / count;
+	}
+
+	/**
+	 * Adds everything recorded in other to this histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		if (other.count > 0) {
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+	}
+
+	/**
+	 * Forgets everything recorded so far
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * A one line summary, values divided by scale.  Use 1000 to show
+	 * nanoseconds as microseconds
+	 */
+	public String summary(long scale) {
+		return "count=" + count
+				+ " min=" + getMin() / scale
+				+ " mean=" + (long)(getMean() / scale)
+				+ " p50=" + percentile(0.50) / scale
+				+ " p90=" + percentile(0.90) / scale
+				+ " p99=" + percentile(0.99) / scale
+				+ " p999=" + percentile(0.999) / scale
+				+ " max=" + max / scale;
+	}
+
+	public String toString() {
+		return summary(1);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);//>= SUB_BITS
+		int sub = (int)(value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		long lower = (1L << magnitude) | (sub << (magnitude - SUB_BITS));
+		return lower + (1L << (magnitude - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,46 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Addresses for running a client and a server over a local (AF_UNIX) socket
+ * instead of TCP loopback.
+ *
+ * Both multiplexers accept a {@link UnixDomainSocketAddress} in place of a host
+ * and port, and the channels they hand out are still SocketChannels, so
+ * listeners such as EchoServer and EchoClient run over it unchanged.  Data
+ * still passes through the kernel but skips the whole TCP/IP stack: no
+ * checksums, segmentation, acks or congestion control.  That makes it a good
+ * baseline for how much of a loopback round trip is our own code.
+ *
+ * <pre>
+ * UnixDomainSocketAddress address = LocalTransport.newAddress();
+ * new SimpleServerMultiplexer(server, address);
+ * new SimpleClientMultiplexer(client, address);
+ * </pre>
+ *
+ * @author jeff
+ *
+ */
+public class LocalTransport {
+
+	private LocalTransport() {}
+
+	/**
+	 * Creates an address for a socket file in a new temporary directory.  The
+	 * file and directory are deleted when the JVM exits
+	 *
+	 * @return An address nothing is listening on yet
+	 * @throws IOException if the temporary directory can't be created
+	 */
+	public static UnixDomainSocketAddress newAddress() throws IOException {
+		Path dir = Files.createTempDirectory("orc-local");
+		Path socket = dir.resolve("echo.sock");
+		dir.toFile().deleteOnExit();
+		socket.toFile().deleteOnExit();//deleted first, hooks run in reverse order
+		return UnixDomainSocketAddress.of(socket);
+	}
+}
@@ -0,0 +1,173 @@
+package com.orc.io;
+
+/**
+ * A map from primitive longs to objects.
+ *
+ * Keys are stored in a long[] and values in a parallel Object[] using open
+ * addressing with linear probing, so get, put and remove don't box the key or
+ * allocate anything unless the table has to grow.  Removal shifts later entries
+ * back into the hole rather than leaving tombstones, so lookups stay short no
+ * matter how much churn the map sees.
+ *
+ * Null values aren't allowed, a null in the value array marks an empty slot.
+ *
+ * Not thread safe.
+ *
+ * @author jeff
+ *
+ * @param <V> The value type
+ */
+public class LongObjectHashMap<V> {
+
+	/**
+	 * Callback for {@link LongObjectHashMap#forEach(Visitor)}
+	 *
+	 * @param <V> The value type
+	 */
+	public interface Visitor<V> {
+		public void visit(long key, V value);
+	}
+
+	private static final long 	GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private long[] 				keys;
+	private Object[] 			values;
+	private int 				mask;
+	private int 				shift;
+	private int 				size;
+	private int 				resizeAt;
+
+	/**
+	 * @param expectedSize The number of entries the map should hold without growing
+	 */
+	public LongObjectHashMap(final int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * @return The value for key, or null if there isn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = slot(key);
+		while (values[slot] != null) {
+			if (keys[slot] == key) return (V)values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The previous value for key, or null if there wasn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) throw new NullPointerException("Null values are not allowed");
+
+		int slot = slot(key);
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V old = (V)values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeAt) {
+			grow();
+		}
+		return null;
+	}
+
+	/**
+	 * @return The value that was removed, or null if key wasn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = slot(key);
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V old = (V)values[slot];
+				shiftBack(slot);
+				size--;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Calls visitor for each entry without allocating.  The map must not be
+	 * changed until forEach returns
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<? super V> visitor) {
+		for (int slot = 0; slot < values.length; slot++) {
+			if (values[slot] != null) {
+				visitor.visit(keys[slot], (V)values[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Fills the hole left at slot by moving back any entry further along the
+	 * probe chain that would otherwise be cut off from its home slot
+	 */
+	private void shiftBack(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (values[next] != null) {
+			int home = slot(keys[next]);
+			//can the entry at next move into the hole without passing its home slot?
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[hole] = null;
+	}
+
+	private int slot(long key) {
+		return (int)((key * GOLDEN) >>> shift);
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(values.length * 2);
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = slot(oldKeys[i]);
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		resizeAt = capacity / 2;
+	}
+}
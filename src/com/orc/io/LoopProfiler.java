@@ -0,0 +1,157 @@
+package com.orc.io;
+
+import java.io.PrintWriter;
+
+/**
+ * Times the event loop of a multiplexer.
+ *
+ * Two things are measured with System.nanoTime(), each into a
+ * {@link LatencyHistogram} per {@link Event}
+ *
+ * - the gap between select() returning and a callback being dispatched, which
+ *   grows when earlier callbacks in the same pass are slow
+ * - how long each listener callback takes
+ *
+ * Any callback taking longer than the threshold is reported to a
+ * {@link SlowCallbackListener} along with the connection's id and the
+ * listener's class.  The default listener writes a line to System.err.
+ *
+ * A multiplexer without a profiler pays for a null check per callback and
+ * nothing else.
+ *
+ * @see SimpleServerMultiplexer#setProfiler(LoopProfiler)
+ * @see SimpleClientMultiplexer#setProfiler(LoopProfiler)
+ * @author jeff
+ *
+ */
+public class LoopProfiler {
+
+	/**
+	 * The callbacks a multiplexer makes
+	 */
+	public enum Event { ACCEPT, CONNECT, READ, WRITE }
+
+	/**
+	 * Told about callbacks that went over the threshold
+	 */
+	public interface SlowCallbackListener {
+		/**
+		 * @param event				The callback that was slow
+		 * @param connectionId		The connection's id, 0 if the multiplexer has no registry
+		 * @param listenerClass		The class of the listener that was called
+		 * @param nanos				How long the callback took
+		 */
+		public void onSlowCallback(Event event, long connectionId, Class<?> listenerClass, long nanos);
+	}
+
+	private static final Event[] 	EVENTS = Event.values();
+
+	private final LatencyHistogram[] dispatchGaps = new LatencyHistogram[EVENTS.length];
+	private final LatencyHistogram[] callbacks = new LatencyHistogram[EVENTS.length];
+	private final long 				slowThresholdNanos;
+	private SlowCallbackListener 	slowListener;
+	private long 					slowCount;
+
+	/**
+	 * @param slowThresholdNanos	Callbacks taking longer than this are reported
+	 */
+	public LoopProfiler(final long slowThresholdNanos) {
+		this.slowThresholdNanos = slowThresholdNanos;
+		for (int i = 0; i < EVENTS.length; i++) {
+			dispatchGaps[i] = new LatencyHistogram();
+			callbacks[i] = new LatencyHistogram();
+		}
+		this.slowListener = new SlowCallbackListener() {
+			public void onSlowCallback(Event event, long connectionId, Class<?> listenerClass, long nanos) {
+				System.err.println("Slow " + event + " callback: " + nanos / 1000 + "us in "
+						+ listenerClass.getName() + " for connection " + connectionId);
+			}
+		};
+	}
+
+	/**
+	 * @param slowListener Replaces the default, which writes to System.err
+	 */
+	public void setSlowCallbackListener(SlowCallbackListener slowListener) {
+		this.slowListener = slowListener;
+	}
+
+	/**
+	 * Called by the multiplexer just before making a callback
+	 *
+	 * @param selectReturned	When select() returned for this pass
+	 * @return 					The start time of the callback, to be passed to endCallback
+	 */
+	long beginCallback(Event event, long selectReturned) {
+		long now = System.nanoTime();
+		dispatchGaps[event.ordinal()].record(now - selectReturned);
+		return now;
+	}
+
+	/**
+	 * Called by the multiplexer once the callback has returned
+	 *
+	 * @param started		What beginCallback returned
+	 * @param attachment	The key's attachment, normally a {@link SimpleClientContext}
+	 * @param listener		The listener that was called
+	 */
+	void endCallback(Event event, long started, Object attachment, MultiplexListener listener) {
+		long took = System.nanoTime() - started;
+		callbacks[event.ordinal()].record(took);
+
+		if (took > slowThresholdNanos) {
+			slowCount++;
+			long id = attachment instanceof SimpleClientContext ? ((SimpleClientContext)attachment).id : 0;
+			slowListener.onSlowCallback(event, id, listener.getClass(), took);
+		}
+	}
+
+	/**
+	 * @return Time from select() returning to the callback being made, in ns
+	 */
+	public LatencyHistogram getDispatchGaps(Event event) {
+		return dispatchGaps[event.ordinal()];
+	}
+
+	/**
+	 * @return Time spent in the callback, in ns
+	 */
+	public LatencyHistogram getCallbackTimes(Event event) {
+		return callbacks[event.ordinal()];
+	}
+
+	/**
+	 * @return How many callbacks have gone over the threshold
+	 */
+	public long getSlowCount() {
+		return slowCount;
+	}
+
+	/**
+	 * Clears all the histograms and the slow count
+	 */
+	public void reset() {
+		for (int i = 0; i < EVENTS.length; i++) {
+			dispatchGaps[i].reset();
+			callbacks[i].reset();
+		}
+		slowCount = 0;
+	}
+
+	/**
+	 * Prints two lines per event type that has been seen, times in microseconds
+	 * 
+	 * @param out		Where to print
+	 * @param prefix	Put at the start of each line, e.g. "# " for a comment
+	 */
+	public void report(PrintWriter out, String prefix) {
+		for (int i = 0; i < EVENTS.length; i++) {
+			if (callbacks[i].getCount() == 0) {
+				continue;
+			}
+			out.println(String.format("%s%-7s gap(us)      %s", prefix, EVENTS[i], dispatchGaps[i].summary(1000)));
+			out.println(String.format("%s%-7s callback(us) %s", prefix, EVENTS[i], callbacks[i].summary(1000)));
+		}
+		out.println(prefix + "slow callbacks " + slowCount + " (over " + slowThresholdNanos / 1000 + "us)");
+	}
+}
@@ -0,0 +1,105 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * The parts of a selector loop that {@link SimpleServerMultiplexer} and
+ * {@link SimpleClientMultiplexer} share.  Loop thread only.
+ *
+ * @author jeff
+ *
+ */
+final class MultiplexerSupport {
+
+	private MultiplexerSupport() {
+	}
+
+	/**
+	 * Lets the connection's TlsChannel flush and handshake, a TLS error closes
+	 * the connection
+	 *
+	 * @return True if the listener should be called
+	 */
+	static boolean beforeTls(SimpleClientContext clientContext, SelectionKey key) {
+		try {
+			return clientContext.tls.beforeDispatch(key);
+		} catch (IOException e) {
+			System.err.println("TLS error, closing connection " + clientContext.id + ": " + e);
+			try {
+				clientContext.close();
+			} catch (IOException c) {
+				System.err.println("Error closing connection: " + c);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Hands the listener any data the TlsChannel read from the socket but
+	 * couldn't fit in its last read, then makes sure unflushed records get
+	 * an OP_WRITE
+	 *
+	 * @param profiler	The multiplexer's profiler, may be null
+	 */
+	static void afterTls(SimpleClientContext clientContext, MultiplexListener listener, LoopProfiler profiler,
+			long selectReturned) {
+		TlsChannel channel = clientContext.tls;
+		while (channel.hasBufferedInput()) {
+			int buffered = channel.bufferedBytes();
+			long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.READ, selectReturned);
+			listener.onRead(channel, clientContext);
+			if (profiler != null) profiler.endCallback(LoopProfiler.Event.READ, started, clientContext, listener);
+			if (channel.bufferedBytes() == buffered) {
+				break;//the listener isn't taking it
+			}
+		}
+		channel.afterDispatch();
+	}
+
+	/**
+	 * Calls back the connections whose reads resumed, outside their own
+	 * dispatch, over data their TlsChannel had already read.  Only those
+	 * queued when the pass started, a listener that pauses and resumes again
+	 * waits for the next one
+	 *
+	 * @param profiler	The multiplexer's profiler, may be null
+	 */
+	static void dispatchBufferedInput(TlsStage tls, MultiplexListener listener, LoopProfiler profiler,
+			long selectReturned) {
+		for (int n = tls.bufferedInputCount(); n > 0; n--) {
+			SimpleClientContext clientContext = tls.pollBufferedInput();
+			clientContext.tls.dequeuedForInput();
+			if (clientContext.key.isValid()) {
+				afterTls(clientContext, listener, profiler, selectReturned);
+			}
+		}
+	}
+
+	/**
+	 * Closes every connection still registered, giving back what its context
+	 * holds, then the selector itself.  A connection that fails to close, a
+	 * TLS close_notify that can't be sent say, doesn't stop the rest
+	 *
+	 * @param selector The multiplexer's selector, once its loop has stopped
+	 */
+	static void closeAll(Selector selector) {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				if (key.attachment() instanceof SimpleClientContext) {
+					((SimpleClientContext)key.attachment()).close();
+				} else {
+					key.channel().close();
+				}
+			} catch (IOException e) {
+				System.err.println("Error closing connection: " + e);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Error closing multiplexer: " + e);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.orc.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves message handling off the multiplexer's thread onto a pool of workers.
+ *
+ * The loop thread publishes frames with {@link #publish(SimpleClientContext, ByteBuffer)}.
+ * A frame is whatever unit of work the caller chooses, up to maxFrameLength
+ * bytes; a protocol with framing would publish decoded messages, the
+ * EchoServer has none and publishes its reads as they come.  Frames are
+ * copied into pre-allocated ring buffer slots, one ring per worker,
+ * and a connection is always given to the same worker so its frames are handled
+ * in the order they arrived.  A worker passes each frame to the {@link FrameHandler}
+ * along with an empty response buffer; anything the handler writes there is
+ * sent back through a second ring to the loop, which wakes up and hands it to
+ * the {@link ResponseHandler} for writing.
+ *
+ * The FrameHandler is only given the connection's id.  The worker carries
+ * the {@link SimpleClientContext} along from the request slot to the response
+ * slot without touching it, so the reply goes back to the connection the
+ * frame came from even if its id has been recycled since, and the connection
+ * state stays owned by the loop thread.
+ *
+ * Before reading, the caller should {@link #reserve(SimpleClientContext, int)}
+ * room for what the read could publish.  If the connection's worker has
+ * fallen behind its reads are paused, so the data waits in the kernel and the
+ * loop carries on with the other connections, and they are resumed once the
+ * worker has caught up.  Without a reservation publish returns false when the
+ * ring is full and it is up to the caller to wait, drop or stop reading.
+ *
+ * <pre>
+ * OffloadStage stage = new OffloadStage(4, 1024, 4096, frameHandler, responseHandler);
+ * multiplexer.setOffloadStage(stage);
+ * stage.start();
+ * </pre>
+ *
+ * @see SimpleServerMultiplexer#setOffloadStage(OffloadStage)
+ * @author jeff
+ *
+ */
+public class OffloadStage {
+
+	/**
+	 * Business logic, called on a worker thread
+	 */
+	public interface FrameHandler {
+		/**
+		 * @param connectionId	The id of the connection the frame came from
+		 * @param frame			The frame, between position and limit
+		 * @param response		Empty buffer for the reply, leave it empty for no reply
+		 */
+		public void onFrame(long connectionId, ByteBuffer frame, ByteBuffer response);
+	}
+
+	/**
+	 * Writes replies, called on the multiplexer's thread
+	 */
+	public interface ResponseHandler {
+		/**
+		 * @param context	The connection the reply is for, it may have closed since
+		 * @param response	The reply, between position and limit
+		 */
+		public void onResponse(SimpleClientContext context, ByteBuffer response);
+	}
+
+	private final Worker[] 				workers;
+	private final int 					maxFrameLength;
+	private final ResponseHandler 		responseHandler;
+	private volatile Selector 			selector;
+
+	/* connections whose reads are paused until their worker has room, loop thread only */
+	private final ArrayDeque<SimpleClientContext> stalled = new ArrayDeque<SimpleClientContext>();
+
+	/**
+	 * @param workerCount		Number of worker threads
+	 * @param ringSize			Slots in each worker's request and response rings
+	 * @param maxFrameLength	The largest frame or response that can be passed
+	 * @param frameHandler		Handles frames on the workers
+	 * @param responseHandler	Writes responses on the loop thread
+	 */
+	public OffloadStage(final int workerCount, final int ringSize, final int maxFrameLength,
+			final FrameHandler frameHandler, final ResponseHandler responseHandler) {
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker(i, new FrameRing(ringSize, maxFrameLength), new FrameRing(ringSize, maxFrameLength), frameHandler);
+		}
+		this.maxFrameLength = maxFrameLength;
+		this.responseHandler = responseHandler;
+	}
+
+	/**
+	 * Starts the worker threads
+	 */
+	public void start() {
+		for (Worker worker : workers) {
+			worker.running = true;
+			worker.thread.start();
+		}
+	}
+
+	/**
+	 * Stops the worker threads once they have finished the frame they are on,
+	 * frames still in the rings are dropped
+	 */
+	public void stop() {
+		for (Worker worker : workers) {
+			worker.running = false;
+			LockSupport.unpark(worker.thread);
+		}
+	}
+
+	/**
+	 * The selector the workers wake up when they have responses, set by the multiplexer
+	 */
+	void attach(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Checks the connection's worker has room for a read's frames before
+	 * anything is read, loop thread only.  If it can't the
+	 * connection's reads are paused until it can
+	 *
+	 * @param context	The connection about to be read
+	 * @param frames	The most frames the read could be published as
+	 * @return			True if that many publishes will succeed, false if the
+	 * 					connection shouldn't be read yet
+	 * @throws IllegalArgumentException if frames is more than a ring holds
+	 */
+	public boolean reserve(SimpleClientContext context, int frames) {
+		Worker worker = workerFor(context);
+		if (frames > worker.requests.capacity()) {
+			throw new IllegalArgumentException(frames + " frames won't fit in a ring of " + worker.requests.capacity());
+		}
+		if (worker.requests.free() >= frames) {
+			return true;
+		}
+
+		context.pauseReads();
+		stalled.offer(context);
+		worker.stalled = true;
+		LockSupport.unpark(worker.thread);
+		return false;
+	}
+
+	/**
+	 * Copies a frame to the connection's worker, loop thread only.
+	 *
+	 * @param context	The connection the frame came from
+	 * @param frame		The frame, between position and limit.  On success position is moved to limit
+	 * @return			False if the worker's ring is full, nothing is consumed from frame
+	 * @throws IllegalArgumentException if the frame is longer than maxFrameLength
+	 */
+	public boolean publish(SimpleClientContext context, ByteBuffer frame) {
+		if (frame.remaining() > maxFrameLength) {
+			throw new IllegalArgumentException("Frame of " + frame.remaining() + " bytes is over the " + maxFrameLength + " limit");
+		}
+
+		FrameRing ring = workerFor(context).requests;
+		int index = ring.claim();
+		if (index < 0) {
+			return false;
+		}
+
+		ring.buffers[index].put(frame).flip();
+		ring.contexts[index] = context;
+		ring.connectionIds[index] = context.id;
+		ring.publish();
+		LockSupport.unpark(workerFor(context).thread);
+		return true;
+	}
+
+	/**
+	 * Hands every waiting response to the ResponseHandler and resumes reading
+	 * connections whose workers have caught up, loop thread only.  Called by
+	 * the multiplexer on every pass
+	 *
+	 * @return The number of responses handled
+	 */
+	public int drainResponses() {
+		if (!stalled.isEmpty()) {
+			resumeStalled();
+		}
+		int drained = 0;
+		for (Worker worker : workers) {
+			FrameRing ring = worker.responses;
+			int index;
+			while ((index = ring.peek()) >= 0) {
+				try {
+					responseHandler.onResponse(ring.contexts[index], ring.buffers[index]);
+				} finally {
+					ring.release();
+				}
+				drained++;
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * @return The maximum frame length publish will take
+	 */
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * Resumes the connections of every stalled worker whose ring is at least
+	 * half empty, leaving the rest waiting
+	 */
+	private void resumeStalled() {
+		for (Worker worker : workers) {
+			if (worker.stalled && worker.requests.free() >= worker.requests.capacity() / 2) {
+				worker.stalled = false;
+			}
+		}
+		for (int n = stalled.size(); n > 0; n--) {
+			SimpleClientContext context = stalled.poll();
+			if (workerFor(context).stalled) {
+				stalled.offer(context);
+			} else if (context.channel == null || context.channel.isOpen()) {
+				context.resumeReads();
+			}
+		}
+	}
+
+	private Worker workerFor(SimpleClientContext context) {
+		long key = context.id != 0 ? context.id : System.identityHashCode(context);
+		return workers[(int)((key & Long.MAX_VALUE) % workers.length)];
+	}
+
+	/**
+	 * One worker thread with its own pair of rings
+	 */
+	private final class Worker implements Runnable {
+
+		private static final int 	SPINS = 100;
+		private static final int 	YIELDS = 100;
+		private static final long 	PARK_NANOS = 50000;
+
+		final FrameRing 			requests;
+		final FrameRing 			responses;
+		final Thread 				thread;
+		private final FrameHandler 	handler;
+		volatile boolean 			running;
+		/* set by the loop while connections wait for room in requests */
+		volatile boolean 			stalled;
+
+		Worker(final int number, final FrameRing requests, final FrameRing responses, final FrameHandler handler) {
+			this.requests = requests;
+			this.responses = responses;
+			this.handler = handler;
+			this.thread = new Thread(this, "offload-" + number);
+			this.thread.setDaemon(true);
+		}
+
+		public void run() {
+			int idle = 0;
+			while (running) {
+				boolean replied = false;
+				boolean worked = false;
+
+				int index;
+				while (running && (index = requests.peek()) >= 0) {
+					int out = responses.claim();
+					if (out < 0) {
+						//the loop hasn't caught up with our responses, nudge it and wait
+						wakeLoop();
+						backoff(SPINS + YIELDS);
+						continue;
+					}
+
+					ByteBuffer response = responses.buffers[out];
+					try {
+						handler.onFrame(requests.connectionIds[index], requests.buffers[index], response);
+					} catch (RuntimeException e) {
+						System.err.println("Error handling frame for connection " + requests.connectionIds[index] + ": " + e);
+						e.printStackTrace();
+						response.clear();
+					}
+
+					response.flip();
+					if (response.hasRemaining()) {
+						responses.contexts[out] = requests.contexts[index];
+						responses.connectionIds[out] = requests.connectionIds[index];
+						responses.publish();
+						replied = true;
+					}
+					requests.release();
+					worked = true;
+				}
+
+				if (replied || stalled) {//a stalled loop is waiting to hear there's room
+					wakeLoop();
+				}
+				idle = worked ? 0 : idle + 1;
+				backoff(idle);
+			}
+		}
+
+		private void wakeLoop() {
+			Selector loop = selector;
+			if (loop != null) {
+				loop.wakeup();
+			}
+		}
+
+		/**
+		 * Spin, then yield, then park while there's nothing to do
+		 */
+		private void backoff(int idle) {
+			if (idle == 0) {
+				return;
+			} else if (idle < SPINS) {
+				Thread.onSpinWait();
+			} else if (idle < SPINS + YIELDS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	}
+}
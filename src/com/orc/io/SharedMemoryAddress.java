@@ -0,0 +1,86 @@
+package com.orc.io;
+
+import java.io.File;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The address of a shared memory connection: a file both processes map and
+ * the size of the ring buffer in each direction.
+ *
+ * Passing one of these to {@link SimpleServerMultiplexer} or
+ * {@link SimpleClientMultiplexer} in place of a socket address runs the
+ * connection over shared memory, see {@link SharedMemoryLoop}.
+ *
+ * @author jeff
+ *
+ */
+public class SharedMemoryAddress extends SocketAddress {
+
+	private static final long 	serialVersionUID = 1L;
+
+	/**
+	 * Default ring size in each direction
+	 */
+	public static final int 	DEFAULT_CAPACITY = 1024 * 1024;
+
+	/**
+	 * Both rings and the header have to fit in one mapping
+	 */
+	public static final int 	MAX_CAPACITY = 1 << 29;
+
+	private final String 		file;
+	private final int 			capacity;
+	private final boolean 		busySpin;
+
+	/**
+	 * An address under /dev/shm, or the temp directory on systems without one,
+	 * with the default capacity
+	 *
+	 * @param name The file's name
+	 */
+	public SharedMemoryAddress(final String name) {
+		this(defaultDirectory().resolve(name), DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param file		The file to map, created by the server
+	 * @param capacity	Bytes in each direction's ring, rounded up to a power of 2
+	 * @param busySpin	True to poll the ring without ever backing off, which
+	 * 					gives the lowest latency but keeps a core at 100%.  Only
+	 * 					worth it with a free core for each end
+	 */
+	public SharedMemoryAddress(final Path file, final int capacity, final boolean busySpin) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ": " + capacity);
+		}
+		this.file = file.toString();
+		this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.busySpin = busySpin;
+	}
+
+	public Path getFile() {
+		return Paths.get(file);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isBusySpin() {
+		return busySpin;
+	}
+
+	public String toString() {
+		return "shm:" + file;
+	}
+
+	/**
+	 * @return /dev/shm, or the temp directory on systems without one
+	 */
+	public static Path defaultDirectory() {
+		File shm = new File("/dev/shm");
+		return shm.isDirectory() ? shm.toPath() : Paths.get(System.getProperty("java.io.tmpdir"));
+	}
+}
@@ -0,0 +1,93 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * One end of a shared memory connection, reading from one ring and writing
+ * to the other.
+ *
+ * Behaves like a non-blocking socket: reads and writes move whatever they can
+ * and may return 0, and once the other end has closed and everything it wrote
+ * has been read, read returns -1.
+ *
+ * @see SharedMemoryLoop
+ * @author jeff
+ *
+ */
+class SharedMemoryChannel implements ByteChannel {
+
+	private static final VarHandle 	LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final SharedMemoryRing 	inbound;
+	private final SharedMemoryRing 	outbound;
+	private final ByteBuffer 		mapped;
+	private final int 				closedOffset;
+	private final int 				peerClosedOffset;
+	private volatile boolean 		open = true;
+
+	SharedMemoryChannel(final SharedMemoryRing inbound, final SharedMemoryRing outbound, final ByteBuffer mapped,
+			final int closedOffset, final int peerClosedOffset) {
+		this.inbound = inbound;
+		this.outbound = outbound;
+		this.mapped = mapped;
+		this.closedOffset = closedOffset;
+		this.peerClosedOffset = peerClosedOffset;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) throw new ClosedChannelException();
+
+		int bytesread = inbound.read(dst);
+		if (bytesread == 0 && peerClosed() && inbound.available() == 0) {
+			return -1;
+		}
+		return bytesread;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) throw new ClosedChannelException();
+		if (peerClosed()) throw new IOException("Peer closed the connection");
+		return outbound.write(src);
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Marks this end closed, the other end sees end of stream once it has
+	 * read everything already written
+	 */
+	public void close() {
+		if (open) {
+			open = false;
+			LONGS.setRelease(mapped, closedOffset, 1L);
+		}
+	}
+
+	/**
+	 * Marks the other end closed on its behalf, for when its process has gone
+	 * without closing
+	 */
+	void peerDied() {
+		LONGS.setRelease(mapped, peerClosedOffset, 1L);
+	}
+
+	boolean peerClosed() {
+		return (long)LONGS.getAcquire(mapped, peerClosedOffset) != 0;
+	}
+
+	SharedMemoryRing inbound() {
+		return inbound;
+	}
+
+	SharedMemoryRing outbound() {
+		return outbound;
+	}
+}
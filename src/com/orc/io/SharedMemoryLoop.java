@@ -0,0 +1,315 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a single connection between two processes on the same machine over a
+ * memory mapped file, with no system calls on the data path.
+ *
+ * The file holds a small header and two {@link SharedMemoryRing}s, one for
+ * each direction
+ *
+ * <pre>
+ *   0   magic, written last by the server once the file is ready
+ *   8   ring capacity
+ *   16  server's pid
+ *   64  client attached, holding the client's pid
+ *   128 client closed
+ *   192 server closed
+ *   256 client to server ring's tail and head
+ *   384 server to client ring's tail and head
+ *   512 client to server data, then server to client data
+ * </pre>
+ *
+ * There is no selector to block on, so the loop polls both rings.  When
+ * nothing has moved it spins, then yields, then parks for a short while,
+ * the same back off the {@link OffloadStage} workers use; an address with
+ * busy spin set never backs off.  Either way the loop thread is dedicated to
+ * the one connection.
+ *
+ * A peer killed without closing never marks itself closed, so once the loop
+ * has backed off to parking it checks every so often that the peer's process
+ * is still alive, and treats it as closed if not.
+ *
+ * The listener sees the same callbacks as over a socket, except that onAccept
+ * and onConnect are passed a null channel since there is no socket, and a
+ * peer closing shows up as a read returning -1.  Replies have to be written
+ * through {@link SimpleClientContext#channel}.
+ *
+ * The context stands in for a selection key.  onWrite is only called while
+ * the listener wants writes, from the start on the connecting side as its
+ * socket multiplexer registers OP_WRITE, otherwise once it has called
+ * {@link SimpleClientContext#setWriteInterest(boolean)}; onRead isn't called
+ * while reads are paused.  Once the peer has closed and everything it sent
+ * has been read the context is closed, whether or not the listener did so
+ * on seeing -1, and run() returns.  The context is closed the same way when
+ * stop() ends the loop, giving back its id and receive buffer as closing a
+ * socket multiplexer does.
+ *
+ * @see SharedMemoryAddress
+ * @author jeff
+ *
+ */
+class SharedMemoryLoop {
+
+	private static final VarHandle 	LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private static final long 		MAGIC = 0x6f72632d73686d31L;//"orc-shm1"
+	private static final int 		MAGIC_OFFSET = 0;
+	private static final int 		CAPACITY_OFFSET = 8;
+	private static final int 		SERVER_PID_OFFSET = 16;
+	private static final int 		CLIENT_ATTACHED_OFFSET = 64;
+	private static final int 		CLIENT_CLOSED_OFFSET = 128;
+	private static final int 		SERVER_CLOSED_OFFSET = 192;
+	private static final int 		TO_SERVER_CONTROL = 256;
+	private static final int 		TO_CLIENT_CONTROL = TO_SERVER_CONTROL + SharedMemoryRing.CONTROL_SIZE;
+	private static final int 		HEADER_SIZE = 512;
+
+	private static final int 		SPINS = 100;
+	private static final int 		YIELDS = 100;
+	private static final long 		PARK_NANOS = 50000;
+	private static final long 		PEER_CHECK_NANOS = 100000000L;
+
+	private final SharedMemoryAddress 	address;
+	private final MappedByteBuffer 	mapped;
+	private final SharedMemoryChannel 	channel;
+	private final boolean 				server;
+	private long 						peerChecked;
+
+	private SharedMemoryLoop(final SharedMemoryAddress address, final MappedByteBuffer mapped, final int capacity, final boolean server) {
+		this.address = address;
+		this.mapped = mapped;
+		this.server = server;
+
+		SharedMemoryRing toServer = new SharedMemoryRing(mapped, TO_SERVER_CONTROL, HEADER_SIZE, capacity);
+		SharedMemoryRing toClient = new SharedMemoryRing(mapped, TO_CLIENT_CONTROL, HEADER_SIZE + capacity, capacity);
+		if (server) {
+			channel = new SharedMemoryChannel(toServer, toClient, mapped, SERVER_CLOSED_OFFSET, CLIENT_CLOSED_OFFSET);
+		} else {
+			channel = new SharedMemoryChannel(toClient, toServer, mapped, CLIENT_CLOSED_OFFSET, SERVER_CLOSED_OFFSET);
+		}
+	}
+
+	/**
+	 * Creates and maps a fresh file, replacing any left over from an earlier
+	 * run, and waits for a client to attach
+	 *
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	static SharedMemoryLoop listen(SharedMemoryAddress address) throws IOException {
+		Path file = address.getFile();
+		Files.deleteIfExists(file);
+
+		int capacity = address.getCapacity();
+		MappedByteBuffer mapped;
+		FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			mapped = fc.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * capacity);
+		} finally {
+			fc.close();//the mapping stays valid
+		}
+		file.toFile().deleteOnExit();
+
+		SharedMemoryLoop loop = new SharedMemoryLoop(address, mapped, capacity, true);
+		LONGS.set(mapped, CAPACITY_OFFSET, (long)capacity);
+		LONGS.set(mapped, SERVER_PID_OFFSET, ProcessHandle.current().pid());
+		LONGS.set(mapped, CLIENT_ATTACHED_OFFSET, 0L);
+		LONGS.set(mapped, CLIENT_CLOSED_OFFSET, 0L);
+		LONGS.set(mapped, SERVER_CLOSED_OFFSET, 0L);
+		loop.channel.inbound().reset();
+		loop.channel.outbound().reset();
+		LONGS.setRelease(mapped, MAGIC_OFFSET, MAGIC);
+		return loop;
+	}
+
+	/**
+	 * Maps the file of a listening server and attaches to it
+	 *
+	 * @throws IOException if there is no server listening, including a file left
+	 * 						by a server that was killed, or it already has a client
+	 */
+	static SharedMemoryLoop connect(SharedMemoryAddress address) throws IOException {
+		Path file = address.getFile();
+		MappedByteBuffer mapped;
+		FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (fc.size() < HEADER_SIZE) {
+				throw new IOException("No server listening on " + address);
+			}
+			mapped = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+		} finally {
+			fc.close();
+		}
+
+		if ((long)LONGS.getAcquire(mapped, MAGIC_OFFSET) != MAGIC) {
+			throw new IOException("No server listening on " + address);
+		}
+		long capacity = (long)LONGS.get(mapped, CAPACITY_OFFSET);
+		if (HEADER_SIZE + 2 * capacity != mapped.capacity()) {
+			throw new IOException("Corrupt header in " + address);
+		}
+		if (!isAlive((long)LONGS.get(mapped, SERVER_PID_OFFSET))) {
+			throw new IOException("No server listening on " + address);
+		}
+		if (!LONGS.compareAndSet(mapped, CLIENT_ATTACHED_OFFSET, 0L, ProcessHandle.current().pid())) {
+			throw new IOException("Server on " + address + " already has a client");
+		}
+		return new SharedMemoryLoop(address, mapped, (int)capacity, false);
+	}
+
+	/**
+	 * Polls the connection until it is closed, calling the listener back the
+	 * same way the socket multiplexers do
+	 *
+	 * @param listener		Called back on this thread
+	 * @param allocator		Gives the connection a receive buffer, may be null
+	 * @param registry		Gives the connection an id, may be null
+	 * @param profiler		Times the callbacks, may be null
+	 * @param offload		Has its responses drained on every pass, may be null
+	 */
+	void run(MultiplexListener listener, AdaptiveReceiveAllocator allocator, ConnectionRegistry registry,
+			LoopProfiler profiler, OffloadStage offload) {
+		boolean spin = address.isBusySpin();
+		int idle = 0;
+
+		if (server) {
+			while (channel.isOpen() && (long)LONGS.getAcquire(mapped, CLIENT_ATTACHED_OFFSET) == 0) {
+				idle = backoff(spin, idle + 1);
+			}
+			if (!channel.isOpen()) {//stopped before anyone attached
+				address.getFile().toFile().delete();
+				return;
+			}
+		}
+
+		SimpleClientContext context = new SimpleClientContext();
+		context.channel = channel;
+		context.writeInterest = !server;
+		if (allocator != null) {
+			context.receiveBuffer = allocator.newBuffer(null);
+		}
+		if (registry != null) {
+			registry.register(context);
+		}
+
+		try {
+			LoopProfiler.Event opened = server ? LoopProfiler.Event.ACCEPT : LoopProfiler.Event.CONNECT;
+			long started = profiler == null ? 0 : profiler.beginCallback(opened, System.nanoTime());
+			if (server) {
+				listener.onAccept(null, context);
+			} else {
+				listener.onConnect(null, context);
+			}
+			if (profiler != null) profiler.endCallback(opened, started, context, listener);
+
+			loop(listener, context, profiler, offload, spin);
+		} finally {
+			try {
+				context.close();
+			} catch (IOException e) {
+				System.err.println("Error closing shared memory connection: " + e);
+			}
+			if (server) {
+				address.getFile().toFile().delete();
+			}
+		}
+	}
+
+	/**
+	 * Polls the rings until this end is closed, by the listener, the peer or stop()
+	 */
+	private void loop(MultiplexListener listener, SimpleClientContext context, LoopProfiler profiler,
+			OffloadStage offload, boolean spin) {
+		SharedMemoryRing inbound = channel.inbound();
+		SharedMemoryRing outbound = channel.outbound();
+		long started;
+		int idle = 0;
+		while (channel.isOpen()) {
+			try {
+				long positions = positions(inbound, outbound);
+				long passStarted = profiler == null ? 0 : System.nanoTime();
+				int responses = offload == null ? 0 : offload.drainResponses();
+
+				if (!context.isReadPaused() && (inbound.available() > 0 || channel.peerClosed())) {
+					started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.READ, passStarted);
+					listener.onRead(channel, context);
+					if (profiler != null) profiler.endCallback(LoopProfiler.Event.READ, started, context, listener);
+				}
+				if (channel.isOpen() && channel.peerClosed() && inbound.available() == 0) {
+					context.close();//the listener has been given its -1, don't keep offering it
+				}
+				if (channel.isOpen() && context.writeInterest && outbound.free() > 0) {
+					started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.WRITE, passStarted);
+					listener.onWrite(channel, context);
+					if (profiler != null) profiler.endCallback(LoopProfiler.Event.WRITE, started, context, listener);
+				}
+
+				//positions only increase, so any read or write by either side changes the sum
+				boolean moved = responses > 0 || positions(inbound, outbound) != positions;
+				idle = backoff(spin, moved ? 0 : idle + 1);
+				if (idle == SPINS + YIELDS && !channel.peerClosed() && !peerAlive()) {
+					channel.peerDied();//picked up on the next pass like a close
+				}
+			} catch (Exception e) {
+				System.err.println(e);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Closes this end, run() returns after the pass it is on.  Can be called
+	 * from any thread
+	 */
+	void stop() {
+		channel.close();
+	}
+
+	/**
+	 * @return False if the peer's process has died, only looked up every
+	 * 			PEER_CHECK_NANOS
+	 */
+	private boolean peerAlive() {
+		long now = System.nanoTime();
+		if (peerChecked != 0 && now - peerChecked < PEER_CHECK_NANOS) {
+			return true;
+		}
+		peerChecked = now;
+		return isAlive((long)LONGS.getAcquire(mapped, server ? CLIENT_ATTACHED_OFFSET : SERVER_PID_OFFSET));
+	}
+
+	private static boolean isAlive(long pid) {
+		return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+	}
+
+	private static long positions(SharedMemoryRing inbound, SharedMemoryRing outbound) {
+		return inbound.produced() + inbound.consumed() + outbound.produced() + outbound.consumed();
+	}
+
+	/**
+	 * Spin, then yield, then park while there's nothing to do
+	 *
+	 * @return idle, capped so it can't overflow while parked
+	 */
+	private static int backoff(boolean spin, int idle) {
+		if (idle == 0) {
+			return 0;
+		} else if (spin || idle < SPINS) {
+			Thread.onSpinWait();
+		} else if (idle < SPINS + YIELDS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return Math.min(idle, SPINS + YIELDS);
+	}
+}
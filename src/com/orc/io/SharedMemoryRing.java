@@ -0,0 +1,139 @@
+package com.orc.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A single producer, single consumer byte ring living in a mapped file.
+ *
+ * The producer's write position (tail) and the consumer's read position (head)
+ * are longs in the mapping, each on its own cache line, and only ever
+ * increase.  The data is copied in first and then the tail is published with a
+ * release store; the consumer reads the tail with an acquire load, so it can
+ * never see a position before the bytes behind it.  The same goes for the head
+ * in the other direction.
+ *
+ * The ring carries a plain byte stream, exactly like a socket, so any framing
+ * is up to the listener.
+ *
+ * @see SharedMemoryLoop
+ * @author jeff
+ *
+ */
+class SharedMemoryRing {
+
+	private static final VarHandle 	LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/** Bytes of control block per ring, the tail and head each get a cache line */
+	static final int 				CONTROL_SIZE = 128;
+
+	private final ByteBuffer 		mapped;
+	private final int 				tailOffset;
+	private final int 				headOffset;
+	private final int 				dataOffset;
+	private final int 				capacity;
+	private final int 				mask;
+
+	/**
+	 * @param mapped		The whole mapping
+	 * @param controlOffset	Where this ring's tail and head live, 64 byte aligned
+	 * @param dataOffset	Where this ring's data starts
+	 * @param capacity		Bytes of data, a power of 2
+	 */
+	SharedMemoryRing(final ByteBuffer mapped, final int controlOffset, final int dataOffset, final int capacity) {
+		this.mapped = mapped;
+		this.tailOffset = controlOffset;
+		this.headOffset = controlOffset + 64;
+		this.dataOffset = dataOffset;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Producer side, copies as much of src as fits
+	 *
+	 * @return The number of bytes written, possibly 0
+	 */
+	int write(ByteBuffer src) {
+		long tail = (long)LONGS.get(mapped, tailOffset);
+		long head = (long)LONGS.getAcquire(mapped, headOffset);
+		int n = (int)Math.min(capacity - (tail - head), src.remaining());
+		if (n <= 0) {
+			return 0;
+		}
+
+		int index = (int)tail & mask;
+		int first = Math.min(n, capacity - index);
+		mapped.put(dataOffset + index, src, src.position(), first);
+		if (n > first) {
+			mapped.put(dataOffset, src, src.position() + first, n - first);
+		}
+		src.position(src.position() + n);
+
+		LONGS.setRelease(mapped, tailOffset, tail + n);
+		return n;
+	}
+
+	/**
+	 * Consumer side, copies as much as is waiting and fits in dst
+	 *
+	 * @return The number of bytes read, possibly 0
+	 */
+	int read(ByteBuffer dst) {
+		long head = (long)LONGS.get(mapped, headOffset);
+		long tail = (long)LONGS.getAcquire(mapped, tailOffset);
+		int n = (int)Math.min(tail - head, dst.remaining());
+		if (n <= 0) {
+			return 0;
+		}
+
+		int index = (int)head & mask;
+		int first = Math.min(n, capacity - index);
+		dst.put(dst.position(), mapped, dataOffset + index, first);
+		if (n > first) {
+			dst.put(dst.position() + first, mapped, dataOffset, n - first);
+		}
+		dst.position(dst.position() + n);
+
+		LONGS.setRelease(mapped, headOffset, head + n);
+		return n;
+	}
+
+	/**
+	 * @return Bytes waiting to be read
+	 */
+	int available() {
+		return (int)((long)LONGS.getAcquire(mapped, tailOffset) - (long)LONGS.getAcquire(mapped, headOffset));
+	}
+
+	/**
+	 * @return Bytes that can be written without blocking
+	 */
+	int free() {
+		return capacity - available();
+	}
+
+	/**
+	 * @return Total bytes ever written, used to tell whether anything moved
+	 */
+	long produced() {
+		return (long)LONGS.getAcquire(mapped, tailOffset);
+	}
+
+	/**
+	 * @return Total bytes ever read, used to tell whether anything moved
+	 */
+	long consumed() {
+		return (long)LONGS.getAcquire(mapped, headOffset);
+	}
+
+	/**
+	 * Sets both positions to 0, only while no one else has the file mapped
+	 */
+	void reset() {
+		LONGS.setRelease(mapped, tailOffset, 0L);
+		LONGS.setRelease(mapped, headOffset, 0L);
+	}
+}
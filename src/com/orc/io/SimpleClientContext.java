@@ -1,9 +1,15 @@
 package com.orc.io;
 
+import java.io.IOException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
+import com.orc.io.jfr.ConnectionCloseEvent;
+import com.orc.io.jfr.EventTypes;
+
 /**
  * A client context keeps track of a client's socket's, callback keys
  * and other data.
@@ -25,10 +31,169 @@ public class SimpleClientContext {
 	 */
 	public SocketChannel 		socket;
 	
+	/**
+	 * The channel to read from and write to, whatever the transport.  The
+	 * same object as socket for TCP and local sockets, a shared memory ring
+	 * when there is no socket at all, see {@link SharedMemoryAddress}
+	 */
+	public ByteChannel			channel;
+	
 	/**
 	 * This is the reference key used by NIO to keep track of callbacks
 	 * 
 	 */
 	public SelectionKey 		key;
 	
+	/**
+	 * The channel onRead is given when the server multiplexer is running a
+	 * {@link FairReadScheduler}, null otherwise
+	 */
+	public BudgetedChannel		budget;
+	
+	/**
+	 * The connection's read buffer when the multiplexer has been given an
+	 * {@link AdaptiveReceiveAllocator}, null otherwise
+	 */
+	public AdaptiveReceiveBuffer receiveBuffer;
+	
+	/**
+	 * Data the listener has yet to write, in write mode, for when the channel
+	 * can't take everything at once.  Null until a listener needs one
+	 */
+	public ByteBuffer			sendBuffer;
+	
+	/**
+	 * The connection's id when the multiplexer has been given a
+	 * {@link ConnectionRegistry}, 0 otherwise
+	 */
+	public long					id;
+	
+	ConnectionRegistry			registry;
+	
+	/* the same object as channel when the multiplexer has a TlsStage */
+	TlsChannel					tls;
+
+	/* what the listener asked for, see pauseReads() and setWriteInterest() */
+	int							readPauses;
+	boolean						writeInterest;
+
+	private boolean				closed;
+
+	/**
+	 * Stops onRead being called for this connection until resumeReads(), so a
+	 * listener with replies the peer hasn't taken yet can push back on it.
+	 * Data sent meanwhile waits in the kernel.
+	 * 
+	 * Pauses are counted, so the listener and an {@link OffloadStage} can each
+	 * hold one without one resuming reads the other still needs stopped
+	 */
+	public void pauseReads() {
+		readPauses++;
+		updateReadInterest();
+	}
+
+	/**
+	 * Undoes one pauseReads(), reads resume once every pause has been undone.
+	 * A connection the {@link FairReadScheduler} has deferred still waits for
+	 * its bucket to refill
+	 */
+	public void resumeReads() {
+		if (readPauses > 0) {
+			readPauses--;
+		}
+		updateReadInterest();
+	}
+
+	/**
+	 * @return True while reads are paused, whoever paused them
+	 */
+	public boolean isReadPaused() {
+		return readPauses > 0;
+	}
+
+	/**
+	 * Asks for onWrite calls, or stops them, leaving the rest of the
+	 * interest set alone
+	 *
+	 * @param writeInterest True while the listener has data waiting to be written
+	 */
+	public void setWriteInterest(boolean writeInterest) {
+		this.writeInterest = writeInterest;
+		if (key != null && key.isValid()) {
+			int ops = key.interestOps();
+			key.interestOps(writeInterest ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * The only place OP_READ is set or cleared once a connection is up.  It is
+	 * wanted unless the listener has paused reads or the read scheduler has
+	 * deferred the connection, so neither can undo the other.  A TLS
+	 * connection may have read records the socket won't be selected for
+	 * again, putting OP_READ back tells its channel so they get read
+	 */
+	void updateReadInterest() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		boolean read = readPauses == 0 && (budget == null || !budget.deferred);
+		int ops = key.interestOps();
+		key.interestOps(read ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+		if (read && (ops & SelectionKey.OP_READ) == 0 && tls != null) {
+			tls.readsResumed(this);
+		}
+	}
+
+	/**
+	 * Turns Nagle's algorithm off, or back on, for a TCP connection, anything
+	 * else is left alone.  With it on a small reply waits for the peer to
+	 * acknowledge the last one, and a peer that only acknowledges along with
+	 * its next message holds every reply back until then
+	 * 
+	 * @param noDelay True to send small writes straight away
+	 * @throws IOException if the socket won't take the option
+	 */
+	public void setNoDelay(boolean noDelay) throws IOException {
+		if (socket != null && socket.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			socket.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+		}
+	}
+
+	/**
+	 * Closes the channel, which also cancels the key, and gives back anything
+	 * the connection was holding on to, including its id.  Closing twice
+	 * does nothing the second time
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		ConnectionCloseEvent event = EventTypes.CLOSE.isEnabled() ? new ConnectionCloseEvent() : null;
+		if (event != null) {
+			event.begin();
+		}
+		
+		if (registry != null) {
+			registry.unregister(this);
+		}
+		if (receiveBuffer != null) {
+			receiveBuffer.release();
+		}
+		if (channel != null) {
+			channel.close();
+		} else {
+			socket.close();
+		}
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.connectionId = id;
+				event.commit();
+			}
+		}
+	}
+	
 }
@@ -2,6 +2,9 @@ package com.orc.io;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -10,12 +13,22 @@ import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.Set;
 
+import com.orc.io.jfr.EventTypes;
+import com.orc.io.jfr.SelectIterationEvent;
+
 /**
  * This is a simple multiplexer set up to assume the duties of a 
  * client connecting to a server.
  * 
  * As such it will deal with onConnect, onRead and onWrite but not onAccept
  * 
+ * Given a {@link UnixDomainSocketAddress} it connects over a local socket
+ * rather than TCP, see {@link LocalTransport}, and given a
+ * {@link SharedMemoryAddress} over shared memory, see {@link SharedMemoryLoop}
+ * 
+ * With a {@link TlsStage} the connection is encrypted, the listener reads and
+ * writes plaintext through a {@link TlsChannel}
+ * 
  * @see SimpleServerMultiplexer for a Server based multiplexer
  * @author jeff
  *
@@ -26,9 +39,15 @@ public class SimpleClientMultiplexer {
 	private SelectionKey connectKey;
 	private final MultiplexListener client;
 	private SocketChannel socketChannel;
+	private AdaptiveReceiveAllocator receiveAllocator;
+	private ConnectionRegistry registry;
+	private LoopProfiler profiler;
+	private TlsStage tls;
+	
+	private SharedMemoryLoop sharedMemory;
+	private volatile boolean running;
 	
-	private String target;
-	private int port;
+	private final SocketAddress address;
 
 	/**
 	 * Pass in the neccessary info
@@ -40,9 +59,18 @@ public class SimpleClientMultiplexer {
 	 * @throws IOException
 	 */
 	public SimpleClientMultiplexer(final MultiplexListener client, final String target, final int port) {
+		this(client, new InetSocketAddress(target, port));
+	}
+	
+	/**
+	 * @param client 	The MultiplexListener that the Selector will 
+	 * 					call back when events occur
+	 * @param address	The server's address, an InetSocketAddress or a
+	 * 					UnixDomainSocketAddress
+	 */
+	public SimpleClientMultiplexer(final MultiplexListener client, final SocketAddress address) {
 		this.client = client;
-		this.target = target;
-		this.port = port;
+		this.address = address;
 	}
 	
 	/**
@@ -54,17 +82,75 @@ public class SimpleClientMultiplexer {
 	 * @throws IOException
 	 */
 	public void connect() throws IOException {
+		running = true;
+		if (address instanceof SharedMemoryAddress) {
+			sharedMemory = SharedMemoryLoop.connect((SharedMemoryAddress)address);
+			return;
+		}
+		
 		selector = Selector.open();
 		
-	    socketChannel = SocketChannel.open();
+	    if (address instanceof UnixDomainSocketAddress) {
+	    	socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+	    } else {
+	    	socketChannel = SocketChannel.open();
+	    }
 	    socketChannel.configureBlocking(false);
 	  
-	    socketChannel.connect(new InetSocketAddress(target, port));
+	    socketChannel.connect(address);
 
 	    //Note that we are registering for a Connect, not an Accept
 	    connectKey = socketChannel.register(selector, SelectionKey.OP_CONNECT);
 	}
 	
+	/**
+	 * Gives each connection its own adaptively sized read buffer, see
+	 * {@link SimpleClientContext#receiveBuffer}.  Should be set before the connection completes
+	 * 
+	 * @param receiveAllocator The allocator to use, or null for no per-connection buffers
+	 */
+	public void setReceiveAllocator(AdaptiveReceiveAllocator receiveAllocator) {
+		this.receiveAllocator = receiveAllocator;
+	}
+	
+	/**
+	 * Registers every connection with the registry so it has an id, see
+	 * {@link SimpleClientContext#id}.  Should be set before the connection completes
+	 * 
+	 * @param registry The registry to use, or null to leave connections without ids
+	 */
+	public void setRegistry(ConnectionRegistry registry) {
+		this.registry = registry;
+	}
+	
+	/**
+	 * @return The registry connections are added to, null if there isn't one
+	 */
+	public ConnectionRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * Times every callback and the gap between select() returning and the
+	 * callback being made.  Should be set before run() is called
+	 * 
+	 * @param profiler The profiler to record into, or null (the default) for no timing
+	 */
+	public void setProfiler(LoopProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Encrypts the connection with TLS.  Its channel is a {@link TlsChannel},
+	 * which is also what onRead and onWrite are given, and they aren't called
+	 * until the handshake is done.  Should be set before the connection completes
+	 * 
+	 * @param tls The stage, or null (the default) for plaintext
+	 */
+	public void setTlsStage(TlsStage tls) {
+		this.tls = tls;
+	}
+	
 	/**
 	 * This is the heart of the multiplexor.
 	 * 
@@ -76,14 +162,35 @@ public class SimpleClientMultiplexer {
 	 * 
 	 * Read will be called when the server writes data to the client
 	 * Write will be called when the client is able to write to the server
+	 * 
+	 * Returns once stop() is called, or over shared memory once the connection
+	 * is closed
 	 */
 	public void run() {
+		if (sharedMemory != null) {
+			sharedMemory.run(client, receiveAllocator, registry, profiler, null);
+			return;
+		}
 
-		while (true) {
+		while (running) {
+			SelectIterationEvent iteration = EventTypes.SELECT_ITERATION.isEnabled() ? new SelectIterationEvent() : null;
 			try {
+				long selectStarted = iteration != null ? System.nanoTime() : 0;
 				selector.select();//this blocks, use select(timestamp) to block for a small amount of time
+				if (iteration != null) {
+					iteration.blocked = System.nanoTime() - selectStarted;
+					iteration.begin();//the duration is dispatch only, an idle wait isn't a slow pass
+				}
+				long selectReturned = profiler == null ? 0 : System.nanoTime();
+				if (tls != null) {
+					tls.resumeHandshakes();
+					MultiplexerSupport.dispatchBufferedInput(tls, client, profiler, selectReturned);
+				}
 				Set<SelectionKey> keys = selector.selectedKeys();
 				Iterator<SelectionKey> i = keys.iterator();
+				if (iteration != null) {
+					iteration.readyKeys = keys.size();
+				}
 
 				while (i.hasNext()) {
 					SelectionKey curKey = i.next();
@@ -111,18 +218,57 @@ public class SimpleClientMultiplexer {
 
 						SimpleClientContext clientContext = new SimpleClientContext();
 						clientContext.socket = outConnection;
+						clientContext.channel = outConnection;
 						clientContext.key = clientKey;
 						clientKey.attach(clientContext);
+						if (receiveAllocator != null) {
+							clientContext.receiveBuffer = receiveAllocator.newBuffer(outConnection);
+						}
+						if (registry != null) {
+							registry.register(clientContext);
+						}
+						if (tls != null) {
+							clientContext.tls = tls.open(outConnection, outConnection, clientKey, true,
+									SelectionKey.OP_READ | SelectionKey.OP_WRITE, address);
+							clientContext.channel = clientContext.tls;
+						}
 
+						long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.CONNECT, selectReturned);
 						client.onConnect(outConnection, clientKey.attachment());
+						if (profiler != null) profiler.endCallback(LoopProfiler.Event.CONNECT, started, clientContext, client);
 
-					} else if (curKey.isReadable()){
-						client.onRead((ReadableByteChannel)curKey.channel(), curKey.attachment());
-					} else if (curKey.isWritable()) {
-						client.onWrite((WritableByteChannel)curKey.channel(), curKey.attachment());
+					} else {
+						SimpleClientContext clientContext = (SimpleClientContext)curKey.attachment();
+						if (clientContext.tls != null && !MultiplexerSupport.beforeTls(clientContext, curKey)) {
+							continue;
+						}
+						
+						if (curKey.isReadable()){
+							ReadableByteChannel channel = clientContext.tls != null ? clientContext.tls : (ReadableByteChannel)curKey.channel();
+							long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.READ, selectReturned);
+							client.onRead(channel, clientContext);
+							if (profiler != null) profiler.endCallback(LoopProfiler.Event.READ, started, clientContext, client);
+						} else if (curKey.isWritable()) {
+							WritableByteChannel channel = clientContext.tls != null ? clientContext.tls : (WritableByteChannel)curKey.channel();
+							long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.WRITE, selectReturned);
+							client.onWrite(channel, clientContext);
+							if (profiler != null) profiler.endCallback(LoopProfiler.Event.WRITE, started, clientContext, client);
+						}
+						
+						if (clientContext.tls != null) {
+							MultiplexerSupport.afterTls(clientContext, client, profiler, selectReturned);
+						}
 					}
 					
 				}
+
+				if (iteration != null) {
+					iteration.end();
+					if (iteration.shouldCommit()) {
+						iteration.registeredKeys = selector.keys().size();
+						iteration.commit();
+					}
+				}
 			} catch (IOException e) {
 				System.err.println(e);
 
@@ -131,7 +277,20 @@ public class SimpleClientMultiplexer {
 				e.printStackTrace();
 			}
 		}
+		MultiplexerSupport.closeAll(selector);
 	}
 	
+	/**
+	 * Makes run() return after the pass it is on, closing the connection if it
+	 * is still open.  Can be called from any thread, including from a callback
+	 */
+	public void stop() {
+		running = false;
+		if (sharedMemory != null) {
+			sharedMemory.stop();
+		} else if (selector != null) {
+			selector.wakeup();
+		}
+	}
 
 }
@@ -2,6 +2,10 @@ package com.orc.io;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -11,6 +15,10 @@ import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.Set;
 
+import com.orc.io.jfr.ConnectionAcceptEvent;
+import com.orc.io.jfr.EventTypes;
+import com.orc.io.jfr.SelectIterationEvent;
+
 /**
  * This is a simple multiplexer set up to assume the duties of a 
  * server allowing multiple clients to connect.
@@ -18,18 +26,47 @@ import java.util.Set;
  * It will accept connections for a {@link MultiplexListener} and callback
  * onAccept and onRead.  
  * 
+ * It normally listens on a TCP port, but given a {@link UnixDomainSocketAddress}
+ * it listens on a local socket instead, see {@link LocalTransport}.  Given a
+ * {@link SharedMemoryAddress} it serves a single client over shared memory,
+ * see {@link SharedMemoryLoop}
+ * 
+ * With a {@link TlsStage} every connection is encrypted, the listener reads
+ * and writes plaintext through a {@link TlsChannel}
  * 
  * @author jeff
  *
  */
 public class SimpleServerMultiplexer {
 
+	/**
+	 * Told when accepting a connection fails
+	 */
+	public interface AcceptErrorListener {
+		/**
+		 * Called on the loop thread, which carries on accepting afterwards
+		 *
+		 * @param e Why the accept failed, typically the process is out of file descriptors
+		 */
+		public void onAcceptError(IOException e);
+	}
+
 	private Selector selector;
 	private ServerSocketChannel server;
 	private SelectionKey acceptKey;
 	private MultiplexListener client;
+	private FairReadScheduler readScheduler;
+	private AdaptiveReceiveAllocator receiveAllocator;
+	private ConnectionRegistry registry;
+	private LoopProfiler profiler;
+	private OffloadStage offload;
+	private TlsStage tls;
+	private AcceptErrorListener acceptErrorListener;
+
+	private SharedMemoryLoop sharedMemory;
+	private volatile boolean running;
 	
-	private int port;
+	private final SocketAddress address;
 	
 
 	/**
@@ -39,39 +76,177 @@ public class SimpleServerMultiplexer {
 	 * @throws IOException
 	 */
 	public SimpleServerMultiplexer(final MultiplexListener client, final int port) {
+		this(client, new InetSocketAddress(port));
+	}
+
+	/**
+	 * @param client 	The MultiplexListener that the Selector will 
+	 * 					call back when events occur
+	 * @param address	The address to listen on, an InetSocketAddress or a
+	 * 					UnixDomainSocketAddress
+	 */
+	public SimpleServerMultiplexer(final MultiplexListener client, final SocketAddress address) {
 		this.client = client;
-		this.port = port;
+		this.address = address;
 	}
 
 	/**
-	 * multiplexer will bind to the given port and begin
+	 * multiplexer will bind to the given port or address and begin
 	 * listening.
 	 * 
 	 * Data won't be processed until run() is called
 	 * @throws IOException
 	 */
 	public void connect() throws IOException {
+		running = true;
+		if (address instanceof SharedMemoryAddress) {
+			sharedMemory = SharedMemoryLoop.listen((SharedMemoryAddress)address);
+			return;
+		}
+		
 		selector = Selector.open();
-		server = ServerSocketChannel.open();
-		server.socket().bind(new InetSocketAddress(port));
+		if (address instanceof UnixDomainSocketAddress) {
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			server = ServerSocketChannel.open();
+			//a server restarted on the same port mustn't wait out the last one's connections in TIME_WAIT
+			server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		}
+		server.bind(address);
 		server.configureBlocking(false);
 		acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
 	}
 	
 	
+	/**
+	 * Turns on fair read scheduling, by default every readable connection is
+	 * dispatched on every pass regardless of how much it reads.
+	 * 
+	 * With a scheduler onRead is given the connection's {@link BudgetedChannel}
+	 * rather than the raw socket.  Should be set before run() is called
+	 * 
+	 * @param readScheduler The scheduler to use, or null to turn scheduling off
+	 */
+	public void setReadScheduler(FairReadScheduler readScheduler) {
+		this.readScheduler = readScheduler;
+	}
+	
+	/**
+	 * Gives each connection its own adaptively sized read buffer, see
+	 * {@link SimpleClientContext#receiveBuffer}.  Should be set before run() is called
+	 * 
+	 * @param receiveAllocator The allocator to use, or null for no per-connection buffers
+	 */
+	public void setReceiveAllocator(AdaptiveReceiveAllocator receiveAllocator) {
+		this.receiveAllocator = receiveAllocator;
+	}
+	
+	/**
+	 * Registers every connection with the registry so it has an id, see
+	 * {@link SimpleClientContext#id}.  Should be set before run() is called
+	 * 
+	 * @param registry The registry to use, or null to leave connections without ids
+	 */
+	public void setRegistry(ConnectionRegistry registry) {
+		this.registry = registry;
+	}
+	
+	/**
+	 * @return The registry connections are added to, null if there isn't one
+	 */
+	public ConnectionRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * Times every callback and the gap between select() returning and the
+	 * callback being made.  Should be set before run() is called
+	 * 
+	 * @param profiler The profiler to record into, or null (the default) for no timing
+	 */
+	public void setProfiler(LoopProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Lets an {@link OffloadStage} send responses back through this multiplexer.
+	 * Its workers wake the selector when they have responses, which are then
+	 * handed to the stage's ResponseHandler at the top of the next pass.
+	 * Should be set before run() is called
+	 * 
+	 * @param offload The stage, or null (the default) for none
+	 */
+	public void setOffloadStage(OffloadStage offload) {
+		this.offload = offload;
+	}
+	
+	/**
+	 * Encrypts every connection with TLS.  Each client's channel is a
+	 * {@link TlsChannel}, which is also what onRead is given, and the listener
+	 * isn't called back until its handshake is done.  Should be set before
+	 * run() is called
+	 * 
+	 * @param tls The stage, or null (the default) for plaintext
+	 */
+	public void setTlsStage(TlsStage tls) {
+		this.tls = tls;
+	}
+
+	/**
+	 * Hears about failed accepts.  Should be set before run() is called
+	 *
+	 * @param acceptErrorListener The listener, or null (the default) to write failures to System.err
+	 */
+	public void setAcceptErrorListener(AcceptErrorListener acceptErrorListener) {
+		this.acceptErrorListener = acceptErrorListener;
+	}
+
 	/**
 	 * This is the heart of the multiplexor.
 	 * 
 	 * When the program enters this method it will block until an event occurs on the
 	 * socket at which point the {@link MultiplexListener} will be called back.
+	 * 
+	 * Returns once stop() is called
 	 */
 	public void run() {
+		if (sharedMemory != null) {
+			sharedMemory.run(client, receiveAllocator, registry, profiler, offload);
+			return;
+		}
+		if (offload != null) {
+			offload.attach(selector);
+		}
 
-		while (true) {
+		while (running) {
+			SelectIterationEvent iteration = EventTypes.SELECT_ITERATION.isEnabled() ? new SelectIterationEvent() : null;
 			try {
-				selector.select();//this blocks, use select(timestamp) to block for a small amount of time
+				long selectStarted = iteration != null ? System.nanoTime() : 0;
+				if (readScheduler == null) {
+					selector.select();//this blocks, use select(timestamp) to block for a small amount of time
+				} else {
+					//wake up in time to put rate limited connections back into the selector
+					long now = System.nanoTime();
+					readScheduler.beginPass(now);
+					selector.select(readScheduler.selectTimeout(now));
+				}
+				if (iteration != null) {
+					iteration.blocked = System.nanoTime() - selectStarted;
+					iteration.begin();//the duration is dispatch only, an idle wait isn't a slow pass
+				}
+				long selectReturned = profiler == null ? 0 : System.nanoTime();
+				if (offload != null) {
+					offload.drainResponses();
+				}
+				if (tls != null) {
+					tls.resumeHandshakes();
+					MultiplexerSupport.dispatchBufferedInput(tls, client, profiler, selectReturned);
+				}
 				Set<SelectionKey> keys = selector.selectedKeys();
 				Iterator<SelectionKey> i = keys.iterator();
+				if (iteration != null) {
+					iteration.readyKeys = keys.size();
+				}
 
 				while (i.hasNext()) {
 					SelectionKey curKey = i.next();
@@ -86,7 +261,24 @@ public class SimpleServerMultiplexer {
 			        }
 
 					if (curKey == acceptKey && curKey.isAcceptable()) {
-						SocketChannel incomming = server.accept();
+						ConnectionAcceptEvent accepted = EventTypes.ACCEPT.isEnabled() ? new ConnectionAcceptEvent() : null;
+						if (accepted != null) {
+							accepted.begin();
+						}
+						SocketChannel incomming;
+						try {
+							incomming = server.accept();
+						} catch (IOException e) {
+							if (acceptErrorListener != null) {
+								acceptErrorListener.onAcceptError(e);
+							} else {
+								System.err.println("Error accepting connection: " + e);
+							}
+							continue;
+						}
+						if (incomming == null) {
+							continue;//nothing pending after all, the client gave up
+						}
 						incomming.configureBlocking(false);
 
 						SelectionKey clientKey = incomming.register(selector, SelectionKey.OP_READ);
@@ -94,19 +286,80 @@ public class SimpleServerMultiplexer {
 						//Register the client context with the selection key
 						SimpleClientContext clientContext = new SimpleClientContext();
 						clientContext.socket = incomming;
+						clientContext.channel = incomming;
 						clientContext.key = clientKey;
 						clientKey.attach(clientContext);
+						if (readScheduler != null) {
+							readScheduler.register(clientContext);
+						}
+						if (receiveAllocator != null) {
+							clientContext.receiveBuffer = receiveAllocator.newBuffer(incomming);
+						}
+						if (registry != null) {
+							registry.register(clientContext);
+						}
+						if (tls != null) {
+							ReadableByteChannel source = clientContext.budget != null ? clientContext.budget : incomming;
+							clientContext.tls = tls.open(incomming, source, clientKey, false, SelectionKey.OP_READ, null);
+							clientContext.channel = clientContext.tls;
+						}
+
+						if (accepted != null) {
+							accepted.end();
+							if (accepted.shouldCommit()) {
+								accepted.connectionId = clientContext.id;
+								accepted.remoteAddress = String.valueOf(incomming.getRemoteAddress());
+								accepted.commit();
+							}
+						}
 
+						long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.ACCEPT, selectReturned);
 						client.onAccept((ServerSocketChannel)server, clientKey.attachment());
+						if (profiler != null) profiler.endCallback(LoopProfiler.Event.ACCEPT, started, clientContext, client);
+						
+					} else {
+						SimpleClientContext clientContext = (SimpleClientContext)curKey.attachment();
+						if (clientContext.tls != null && !MultiplexerSupport.beforeTls(clientContext, curKey)) {
+							continue;
+						}
+						
+						if (curKey.isReadable()){//client has written data to the server
+							ReadableByteChannel channel = (ReadableByteChannel)curKey.channel();
+							if (readScheduler != null) {
+								if (!readScheduler.admit(clientContext, System.nanoTime())) {
+									continue;
+								}
+								channel = clientContext.budget;
+							}
+							if (clientContext.tls != null) {
+								channel = clientContext.tls;
+							}
+	
+							long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.READ, selectReturned);
+							client.onRead(channel, clientContext);
+							if (profiler != null) profiler.endCallback(LoopProfiler.Event.READ, started, clientContext, client);
+						} else if (curKey.isWritable()) {
+							WritableByteChannel channel = clientContext.tls != null ? clientContext.tls : (WritableByteChannel)curKey.channel();
+							long started = profiler == null ? 0 : profiler.beginCallback(LoopProfiler.Event.WRITE, selectReturned);
+							client.onWrite(channel, clientContext);
+							if (profiler != null) profiler.endCallback(LoopProfiler.Event.WRITE, started, clientContext, client);
+						}
 						
-					} else if (curKey.isReadable()){//client has written data to the server
-						client.onRead((ReadableByteChannel)curKey.channel(), curKey.attachment());
-					} else if (curKey.isWritable()) {
-						client.onWrite((WritableByteChannel)curKey.channel(), curKey.attachment());
+						if (clientContext.tls != null) {
+							MultiplexerSupport.afterTls(clientContext, client, profiler, selectReturned);
+						}
 					}
 					
 					
 				}
+
+				if (iteration != null) {
+					iteration.end();
+					if (iteration.shouldCommit()) {
+						iteration.registeredKeys = selector.keys().size();
+						iteration.commit();
+					}
+				}
 			} catch (IOException e) {
 				System.err.println(e);
 
@@ -115,6 +368,20 @@ public class SimpleServerMultiplexer {
 				e.printStackTrace();
 			}
 		}
+		MultiplexerSupport.closeAll(selector);
+	}
+	
+	/**
+	 * Makes run() return after the pass it is on, closing the server and every
+	 * client still connected.  Can be called from any thread
+	 */
+	public void stop() {
+		running = false;
+		if (sharedMemory != null) {
+			sharedMemory.stop();
+		} else if (selector != null) {
+			selector.wakeup();
+		}
 	}
 	
 }
@@ -0,0 +1,510 @@
+package com.orc.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking TLS connection, a plaintext ByteChannel over an encrypted
+ * SocketChannel.
+ *
+ * The multiplexer calls {@link #beforeDispatch(SelectionKey)} whenever the
+ * connection's key is selected.  Until the handshake is done that is where it
+ * happens, with the channel setting the key's interest set to whatever the
+ * engine is waiting for; the listener isn't called back at all.  Delegated
+ * tasks are handed to the stage's executor with the key's interest cleared,
+ * and once they have run the stage hands the channel back to the loop, which
+ * puts the key's interest back.
+ *
+ * After that reads unwrap as many records as fit in the caller's buffer and
+ * writes wrap as many as fit in one network buffer before writing them to
+ * the socket together.  Either way the channel can be left holding data the
+ * listener doesn't know about
+ *
+ * - records written to the channel that the socket hasn't taken yet.  The
+ *   multiplexer asks for OP_WRITE until they are flushed, then gives OP_WRITE
+ *   back if the listener wasn't using it.  A listener that gets a short write
+ *   is expected to ask for OP_WRITE itself, as it would on a plain socket
+ * - records read from the socket that didn't fit in the caller's buffer.  The
+ *   socket won't be selected for them again, so after each callback the
+ *   multiplexer calls onRead again for as long as they keep being read.
+ *   While reads are paused they wait, and when reads resume the stage queues
+ *   the connection for the multiplexer's next pass, see {@link #readsResumed}
+ *
+ * All buffers are borrowed from the stage's pools while they hold data and
+ * given back when they are empty.  Loop thread only, the task runner only
+ * runs the engine's tasks and tells the stage they are done.
+ *
+ * @see TlsStage
+ * @author jeff
+ *
+ */
+public class TlsChannel implements ByteChannel {
+
+	private static final ByteBuffer 	EMPTY = ByteBuffer.allocate(0);
+
+	private final TlsStage 				stage;
+	private final SSLEngine 			engine;
+	private final SocketChannel 		socket;
+	private final ReadableByteChannel 	source;
+	private final SelectionKey 			key;
+	private final int 					interestOps;
+
+	/* encrypted data read but not unwrapped, and wrapped but not written, both in write mode */
+	private ByteBuffer 					netIn;
+	private ByteBuffer 					netOut;
+	/* decrypted data that didn't fit in the caller's buffer, in read mode */
+	private ByteBuffer 					appIn;
+
+	private boolean 					handshaken;
+	private long 						handshakeStarted;
+	private boolean 					tasksRunning;
+	private boolean 					addedWrite;
+	private boolean 					inboundClosed;
+	private boolean 					queuedForInput;
+
+	TlsChannel(final TlsStage stage, final SSLEngine engine, final SocketChannel socket,
+			final ReadableByteChannel source, final SelectionKey key, final int interestOps) throws SSLException {
+		this.stage = stage;
+		this.engine = engine;
+		this.socket = socket;
+		this.source = source;
+		this.key = key;
+		this.interestOps = interestOps;
+
+		handshakeStarted = System.nanoTime();
+		engine.beginHandshake();
+		key.interestOps(engine.getUseClientMode() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Reads plaintext, returning 0 if a whole record hasn't arrived yet
+	 *
+	 * @return Bytes read, or -1 once the peer has closed and everything before that has been read
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (!handshaken) {
+			return 0;
+		}
+		int start = dst.position();
+		boolean eof = inboundClosed;
+
+		while (dst.hasRemaining()) {
+			if (appIn != null) {
+				drainApplication(dst);
+				continue;
+			}
+
+			if (!eof && netIn != null && netIn.position() > 0) {
+				SSLEngineResult result = unwrap(dst);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					eof = inboundClosed = true;
+					continue;
+				}
+				if (result.getStatus() == SSLEngineResult.Status.OK) {
+					afterHandshakeMessage(result);
+					continue;
+				}
+			}
+			if (eof) {
+				break;
+			}
+
+			//underflow, need more from the socket
+			if (netIn == null) {
+				netIn = stage.networkBuffers().acquire();
+			} else if (!netIn.hasRemaining()) {
+				throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+			}
+			int read = source.read(netIn);
+			if (read < 0) {
+				eof = inboundClosed = true;
+			} else if (read == 0) {
+				break;
+			}
+		}
+
+		releaseEmpty();
+		int read = dst.position() - start;
+		return read == 0 && eof ? -1 : read;
+	}
+
+	/**
+	 * Wraps as much of src as fits in a network buffer and writes it.  Records
+	 * from an earlier write that the socket hasn't taken yet go first, and
+	 * while there are any nothing more is taken
+	 *
+	 * @return Plaintext bytes taken from src
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		if (!socket.isOpen()) {
+			throw new ClosedChannelException();
+		}
+		if (!handshaken || !flush()) {
+			addedWrite = false;//the caller knows it was short, it is its OP_WRITE now
+			return 0;
+		}
+
+		int start = src.position();
+		if (netOut == null) {
+			netOut = stage.networkBuffers().acquire();
+		}
+		while (src.hasRemaining()) {
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				if (netOut.position() == 0) {
+					throw new SSLException("TLS record larger than " + netOut.capacity() + " bytes");
+				}
+				break;//the batch is full
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new ClosedChannelException();
+			}
+		}
+		flush();
+
+		if (src.hasRemaining()) {
+			addedWrite = false;
+		}
+		return src.position() - start;
+	}
+
+	public boolean isOpen() {
+		return socket.isOpen();
+	}
+
+	/**
+	 * Sends a close_notify if the socket will take it straight away, then
+	 * closes the socket and gives back the buffers
+	 */
+	public void close() throws IOException {
+		if (!socket.isOpen()) {
+			return;
+		}
+		try {
+			engine.closeOutbound();
+			if (netOut == null) {
+				netOut = stage.networkBuffers().acquire();
+			}
+			engine.wrap(EMPTY, netOut);
+			flush();
+		} catch (IOException e) {
+			//closing anyway
+		} finally {
+			socket.close();
+			if (netIn != null) stage.networkBuffers().release(netIn);
+			if (netOut != null) stage.networkBuffers().release(netOut);
+			if (appIn != null) stage.applicationBuffers().release(appIn);
+			netIn = netOut = appIn = null;
+		}
+	}
+
+	/**
+	 * @return True once the handshake is done and the listener can use the channel
+	 */
+	public boolean isHandshaken() {
+		return handshaken;
+	}
+
+	/**
+	 * @return The engine, for the negotiated session
+	 */
+	public SSLEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Called by the multiplexer each time the key is selected, before it calls
+	 * the listener.  Flushes waiting records and drives the handshake
+	 *
+	 * @return True if the listener should be called for the key's ready set
+	 * @throws IOException if the handshake fails or the socket does, the connection should be closed
+	 */
+	boolean beforeDispatch(SelectionKey key) throws IOException {
+		if (tasksRunning) {
+			return false;
+		}
+		if (key.isWritable() && !flush()) {
+			return handshaken && key.isReadable();
+		}
+		if (!handshaken) {
+			return handshake();
+		}
+		if (addedWrite && netOut == null) {
+			SimpleClientContext context = (SimpleClientContext)key.attachment();
+			if (!context.writeInterest) {//the listener may have asked for it since
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+			addedWrite = false;
+			return key.isReadable();
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the multiplexer after the listener, asks for OP_WRITE if
+	 * records are still waiting to be written
+	 */
+	void afterDispatch() {
+		if (handshaken && key.isValid() && netOut != null && netOut.position() > 0
+				&& (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			addedWrite = true;
+		}
+	}
+
+	/**
+	 * @return True if onRead should be called again without waiting for the
+	 * 			socket, data has been read from it that the listener hasn't seen
+	 */
+	boolean hasBufferedInput() {
+		return handshaken && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0
+				&& (appIn != null || netIn != null && netIn.position() > 0 || inboundClosed);
+	}
+
+	/**
+	 * Called by the context when OP_READ goes back into the interest set.  If
+	 * data is waiting the connection is queued with the stage, once, and the
+	 * multiplexer reads it at the top of its next pass
+	 */
+	void readsResumed(SimpleClientContext context) {
+		if (!queuedForInput && hasBufferedInput()) {
+			queuedForInput = true;
+			stage.bufferedInput(context);
+		}
+	}
+
+	/**
+	 * Called by the multiplexer as it takes the connection off the stage's queue
+	 */
+	void dequeuedForInput() {
+		queuedForInput = false;
+	}
+
+	/**
+	 * @return Bytes read from the socket that the listener hasn't seen, to
+	 * 			tell whether another onRead made progress
+	 */
+	int bufferedBytes() {
+		return (appIn == null ? 0 : appIn.remaining()) + (netIn == null ? 0 : netIn.position());
+	}
+
+	/**
+	 * Takes the handshake as far as it can go without waiting
+	 *
+	 * @return True if it has just finished
+	 */
+	private boolean handshake() throws IOException {
+		try {
+			while (true) {
+				switch (engine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					if (netOut == null) {
+						netOut = stage.networkBuffers().acquire();
+					}
+					SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+					if (wrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+						return false;
+					} else if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new SSLException("Engine closed during the handshake");
+					}
+					break;
+
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN:
+					if (!flush()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+						return false;
+					}
+					if (netIn != null && netIn.position() > 0) {
+						netIn.flip();
+						if (appIn == null) {
+							appIn = stage.applicationBuffers().acquire();
+						}
+						SSLEngineResult unwrapped = engine.unwrap(netIn, appIn);
+						netIn.compact();
+						appIn.flip();//handshake records carry no plaintext
+						if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+							throw new EOFException("Peer closed during the TLS handshake");
+						} else if (unwrapped.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+							releaseEmpty();
+							break;
+						}
+						releaseEmpty();
+					}
+					if (netIn == null) {
+						netIn = stage.networkBuffers().acquire();
+					}
+					int read = source.read(netIn);
+					if (read < 0) {
+						throw new EOFException("Peer closed during the TLS handshake");
+					} else if (read == 0) {
+						releaseEmpty();
+						key.interestOps(SelectionKey.OP_READ);
+						return false;
+					}
+					break;
+
+				case NEED_TASK:
+					runTasks();
+					return false;
+
+				default://FINISHED or NOT_HANDSHAKING
+					if (!flush()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+						return false;
+					}
+					handshaken = true;
+					key.interestOps(interestOps);
+					stage.handshakeFinished(System.nanoTime() - handshakeStarted);
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			stage.handshakeFailed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the engine's delegated tasks on the stage's executor, the key is
+	 * idle until they are done
+	 *
+	 * @throws SSLException if the stage has been closed
+	 */
+	private void runTasks() throws SSLException {
+		tasksRunning = true;
+		key.interestOps(0);
+		try {
+			stage.tasks().execute(new Runnable() {
+				public void run() {
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+					stage.tasksDone(TlsChannel.this, key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			tasksRunning = false;
+			throw new SSLException("TLS stage closed during the handshake");
+		}
+	}
+
+	/**
+	 * Called by the stage on the loop thread once the delegated tasks have
+	 * run, the handshake carries on the next time the key is selected
+	 */
+	void resumeHandshake() {
+		tasksRunning = false;
+		if (key.isValid()) {//not closed while the tasks ran
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Unwraps one record, straight into dst when any record will fit
+	 */
+	private SSLEngineResult unwrap(ByteBuffer dst) throws IOException {
+		ByteBuffer target = dst;
+		if (dst.remaining() < stage.applicationBuffers().getBufferSize()) {
+			appIn = stage.applicationBuffers().acquire();
+			target = appIn;
+		}
+
+		netIn.flip();
+		SSLEngineResult result = engine.unwrap(netIn, target);
+		netIn.compact();
+
+		if (target == appIn) {
+			appIn.flip();
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				throw new SSLException("TLS record larger than " + appIn.capacity() + " bytes");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Handles anything the engine wants to do in response to a handshake
+	 * message after the handshake, such as a TLS 1.3 key update.  These are
+	 * rare and small, so they are done on the loop thread
+	 */
+	private void afterHandshakeMessage(SSLEngineResult result) throws IOException {
+		SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+		while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+			if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			} else {
+				if (netOut == null) {
+					netOut = stage.networkBuffers().acquire();
+				}
+				if (engine.wrap(EMPTY, netOut).getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					break;//retried on the next read once the socket has taken some
+				}
+				flush();
+			}
+			status = engine.getHandshakeStatus();
+		}
+	}
+
+	private void drainApplication(ByteBuffer dst) {
+		if (appIn.remaining() <= dst.remaining()) {
+			dst.put(appIn);
+		} else {
+			int limit = appIn.limit();
+			appIn.limit(appIn.position() + dst.remaining());
+			dst.put(appIn);
+			appIn.limit(limit);
+		}
+		if (!appIn.hasRemaining()) {
+			stage.applicationBuffers().release(appIn);
+			appIn = null;
+		}
+	}
+
+	/**
+	 * @return True if nothing is left waiting to be written
+	 */
+	private boolean flush() throws IOException {
+		if (netOut == null) {
+			return true;
+		}
+		if (netOut.position() > 0) {
+			netOut.flip();
+			socket.write(netOut);
+			netOut.compact();
+		}
+		if (netOut.position() > 0) {
+			return false;
+		}
+		stage.networkBuffers().release(netOut);
+		netOut = null;
+		return true;
+	}
+
+	private void releaseEmpty() {
+		if (netIn != null && netIn.position() == 0) {
+			stage.networkBuffers().release(netIn);
+			netIn = null;
+		}
+		if (appIn != null && !appIn.hasRemaining()) {
+			stage.applicationBuffers().release(appIn);
+			appIn = null;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.orc.io;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Encrypts a multiplexer's connections with TLS.
+ *
+ * Given a stage the multiplexer wraps every socket it accepts or connects in a
+ * {@link TlsChannel}, which becomes the connection's
+ * {@link SimpleClientContext#channel} and is what onRead is given.  Listeners
+ * read and write plaintext exactly as they would over a plain socket.
+ *
+ * The handshake is driven from the multiplexer's loop, before the listener
+ * sees any reads or writes.  The slow parts of it, the engine's delegated
+ * tasks such as certificate checks and key generation, run on the stage's
+ * executor so the loop can carry on with the other connections meanwhile.
+ * When they are done the executor queues the connection and wakes the
+ * selector, and the multiplexer calls {@link #resumeHandshakes()} on its loop
+ * thread, so nothing but the loop ever touches a key.
+ *
+ * A connection whose reads are paused can be left holding records it read
+ * before the pause.  The socket won't be selected for them, so when reads are
+ * resumed from outside the connection's own dispatch, by an
+ * {@link OffloadStage} or a {@link FairReadScheduler}, the stage queues the
+ * connection and the multiplexer calls it back at the top of the next pass.
+ *
+ * Certificates are verified.  Both sides check the peer's chain against the
+ * context's trust managers, and a connecting side also checks the server's
+ * certificate is for the host it connected to, endpoint identification as
+ * HTTPS does it, so a certificate the trust store accepts for some other host
+ * fails the handshake.  A connection with no host name, over a local socket
+ * say, fails too unless the stage is given client parameters that don't ask
+ * for it, see {@link #setClientParameters(SSLParameters)}.
+ *
+ * Encrypted data goes through direct buffers borrowed from the stage's pools
+ * only while it is in flight.  A write wraps as many TLS records as fit in a
+ * network buffer, recordsPerWrite of them at the most, and sends them with a
+ * single socket write.
+ *
+ * One stage per multiplexer, the pools belong to its loop thread.  Close the
+ * stage once the multiplexer has stopped, which shuts down the executor if the
+ * stage made it.
+ *
+ * <pre>
+ * SSLContext context = SSLContext.getInstance("TLS");
+ * context.init(keyManagers, trustManagers, null);
+ * TlsStage tls = new TlsStage(context);
+ * multiplexer.setTlsStage(tls);
+ * multiplexer.run();
+ * tls.close();
+ * </pre>
+ *
+ * @see TlsChannel
+ * @author jeff
+ *
+ */
+public class TlsStage implements Closeable {
+
+	private static final int 		DEFAULT_RECORDS_PER_WRITE = 4;
+	private static final int 		MAX_POOLED = 256;
+
+	private final SSLContext 		context;
+	private final Executor 			tasks;
+	private final boolean 			ownsTasks;
+	private final Queue<TlsChannel> tasksDone = new ConcurrentLinkedQueue<TlsChannel>();
+	/* connections with reads resumed over data already read from the socket, loop thread only */
+	private final ArrayDeque<SimpleClientContext> bufferedInput = new ArrayDeque<SimpleClientContext>();
+	private final DirectBufferPool 	networkBuffers;
+	private final DirectBufferPool 	applicationBuffers;
+
+	private SSLParameters 			clientParameters;
+
+	private final LatencyHistogram 	handshakeTimes = new LatencyHistogram();
+	private long 					handshakeFailures;
+
+	/**
+	 * A stage running delegated tasks on a thread per available processor
+	 *
+	 * @param context	Initialised with the keys and trust to use
+	 */
+	public TlsStage(final SSLContext context) {
+		this(context, defaultExecutor(), DEFAULT_RECORDS_PER_WRITE, true);
+	}
+
+	/**
+	 * @param context			Initialised with the keys and trust to use
+	 * @param tasks				Runs the engines' delegated tasks
+	 * @param recordsPerWrite	The most TLS records batched into one socket write,
+	 * 							also sizes the network read buffer
+	 */
+	public TlsStage(final SSLContext context, final Executor tasks, final int recordsPerWrite) {
+		this(context, tasks, recordsPerWrite, false);
+	}
+
+	private TlsStage(final SSLContext context, final Executor tasks, final int recordsPerWrite, final boolean ownsTasks) {
+		this.context = context;
+		this.tasks = tasks;
+		this.ownsTasks = ownsTasks;
+
+		this.clientParameters = context.getDefaultSSLParameters();
+		this.clientParameters.setEndpointIdentificationAlgorithm("HTTPS");
+
+		SSLSession session = context.createSSLEngine().getSession();
+		this.networkBuffers = new DirectBufferPool(session.getPacketBufferSize() * Math.max(1, recordsPerWrite), MAX_POOLED);
+		this.applicationBuffers = new DirectBufferPool(session.getApplicationBufferSize(), MAX_POOLED);
+	}
+
+	/**
+	 * Starts a TLS session on a connected socket, called by the multiplexer
+	 *
+	 * @param socket		The connection
+	 * @param source		What to read encrypted data from, the socket or its BudgetedChannel
+	 * @param key			The connection's key, the channel owns its interest set until the handshake is done
+	 * @param clientMode	True on the connecting side
+	 * @param interestOps	The interest set to hand back to the listener after the handshake
+	 * @param peer			The address connected to, for session resumption, may be null
+	 * @throws javax.net.ssl.SSLException if the engine won't start
+	 */
+	TlsChannel open(SocketChannel socket, ReadableByteChannel source, SelectionKey key, boolean clientMode,
+			int interestOps, SocketAddress peer) throws javax.net.ssl.SSLException {
+		SSLEngine engine;
+		if (peer instanceof InetSocketAddress) {
+			InetSocketAddress inet = (InetSocketAddress)peer;
+			engine = context.createSSLEngine(inet.getHostString(), inet.getPort());
+		} else {
+			engine = context.createSSLEngine();
+		}
+		engine.setUseClientMode(clientMode);
+		if (clientMode) {
+			engine.setSSLParameters(clientParameters);
+		}
+		return new TlsChannel(this, engine, socket, source, key, interestOps);
+	}
+
+	/**
+	 * Replaces the parameters connecting engines are given, by default the
+	 * context's with endpoint identification set to HTTPS.  Clearing the
+	 * identification algorithm turns the host name check off, leaving only the
+	 * trust managers between the connection and a man in the middle.  Should be
+	 * set before the multiplexer connects
+	 *
+	 * @param clientParameters	Protocols, cipher suites and identification for the connecting side
+	 */
+	public void setClientParameters(SSLParameters clientParameters) {
+		this.clientParameters = clientParameters;
+	}
+
+	/**
+	 * @return The parameters connecting engines are given
+	 */
+	public SSLParameters getClientParameters() {
+		return clientParameters;
+	}
+
+	DirectBufferPool networkBuffers() {
+		return networkBuffers;
+	}
+
+	DirectBufferPool applicationBuffers() {
+		return applicationBuffers;
+	}
+
+	Executor tasks() {
+		return tasks;
+	}
+
+	/**
+	 * Called on the executor once a channel's delegated tasks have run, the
+	 * loop picks it up in resumeHandshakes()
+	 */
+	void tasksDone(TlsChannel channel, SelectionKey key) {
+		tasksDone.offer(channel);
+		key.selector().wakeup();
+	}
+
+	/**
+	 * Puts the keys of connections whose delegated tasks have finished back
+	 * into the selector.  Called by the multiplexer on its loop thread each
+	 * time select returns
+	 */
+	void resumeHandshakes() {
+		TlsChannel channel;
+		while ((channel = tasksDone.poll()) != null) {
+			channel.resumeHandshake();
+		}
+	}
+
+	/**
+	 * Called on the loop thread when reads resume on a connection holding
+	 * data the listener hasn't seen.  Wakes the selector in case the loop is
+	 * about to block in select with nothing else to wake it
+	 */
+	void bufferedInput(SimpleClientContext context) {
+		bufferedInput.offer(context);
+		context.key.selector().wakeup();
+	}
+
+	/**
+	 * @return The next connection queued by bufferedInput(), null if there are none
+	 */
+	SimpleClientContext pollBufferedInput() {
+		return bufferedInput.poll();
+	}
+
+	/**
+	 * @return How many connections are queued by bufferedInput()
+	 */
+	int bufferedInputCount() {
+		return bufferedInput.size();
+	}
+
+	void handshakeFinished(long nanos) {
+		handshakeTimes.record(nanos);
+	}
+
+	void handshakeFailed() {
+		handshakeFailures++;
+	}
+
+	/**
+	 * @return How long each completed handshake took, in ns
+	 */
+	public LatencyHistogram getHandshakeTimes() {
+		return handshakeTimes;
+	}
+
+	/**
+	 * @return How many handshakes ended in an error
+	 */
+	public long getHandshakeFailures() {
+		return handshakeFailures;
+	}
+
+	/**
+	 * @return The pool of encrypted data buffers, for its stats
+	 */
+	public DirectBufferPool getNetworkBuffers() {
+		return networkBuffers;
+	}
+
+	/**
+	 * @return The pool of decrypted data buffers, for its stats
+	 */
+	public DirectBufferPool getApplicationBuffers() {
+		return applicationBuffers;
+	}
+
+	/**
+	 * Shuts down the executor running delegated tasks if this stage created
+	 * it, one passed in is left to its owner.  Handshakes still waiting on a
+	 * task after this fail
+	 */
+	public void close() {
+		if (ownsTasks) {
+			((ExecutorService)tasks).shutdown();
+		}
+	}
+
+	private static ExecutorService defaultExecutor() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "tls-task-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
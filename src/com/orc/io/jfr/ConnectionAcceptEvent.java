@@ -0,0 +1,31 @@
+package com.orc.io.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event committed by {@link com.orc.io.SimpleServerMultiplexer} when it
+ * accepts a connection.  The duration covers the accept and the setup of the
+ * connection's context, not the listener's onAccept.
+ * 
+ * @author jeff
+ *
+ */
+@Name("com.orc.io.ConnectionAccept")
+@Label("Connection Accept")
+@Category({ "SimpleNio", "Connection" })
+@Description("A server multiplexer accepted a connection")
+@StackTrace(false)
+public class ConnectionAcceptEvent extends Event {
+
+	@Label("Connection Id")
+	@Description("Id from the multiplexer's ConnectionRegistry, 0 if it has none")
+	public long connectionId;
+
+	@Label("Remote Address")
+	public String remoteAddress;
+}
@@ -0,0 +1,26 @@
+package com.orc.io.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event committed by {@link com.orc.io.SimpleClientContext#close()}.
+ * 
+ * @author jeff
+ *
+ */
+@Name("com.orc.io.ConnectionClose")
+@Label("Connection Close")
+@Category({ "SimpleNio", "Connection" })
+@Description("A connection was closed through its context")
+@StackTrace(false)
+public class ConnectionCloseEvent extends Event {
+
+	@Label("Connection Id")
+	@Description("Id from the multiplexer's ConnectionRegistry, 0 if it has none")
+	public long connectionId;
+}
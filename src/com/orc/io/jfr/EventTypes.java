@@ -0,0 +1,24 @@
+package com.orc.io.jfr;
+
+import jdk.jfr.EventType;
+
+/**
+ * The JFR event types, looked up once.  Every call site allocates its event
+ * only when the type is enabled, so with no recording running an event costs
+ * a check rather than an allocation.  That matters most for SELECT_ITERATION,
+ * which would otherwise allocate on every pass of a loop.
+ * 
+ * @author jeff
+ *
+ */
+public final class EventTypes {
+
+	public static final EventType ACCEPT = EventType.getEventType(ConnectionAcceptEvent.class);
+	public static final EventType CLOSE = EventType.getEventType(ConnectionCloseEvent.class);
+	public static final EventType FRAME = EventType.getEventType(FrameEvent.class);
+	public static final EventType PARTIAL_WRITE = EventType.getEventType(PartialWriteEvent.class);
+	public static final EventType SELECT_ITERATION = EventType.getEventType(SelectIterationEvent.class);
+
+	private EventTypes() {
+	}
+}
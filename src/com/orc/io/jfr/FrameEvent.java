@@ -0,0 +1,38 @@
+package com.orc.io.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a single framed message, its duration covers parsing and
+ * handling the message.
+ * 
+ * There is one of these per message, so it is disabled by default; turn it on
+ * in the recording's settings when chasing a particular problem.
+ * 
+ * @author jeff
+ *
+ */
+@Name("com.orc.io.Frame")
+@Label("Frame")
+@Category({ "SimpleNio", "Message" })
+@Description("A message framed out of the incoming byte stream")
+@StackTrace(false)
+@Enabled(false)
+public class FrameEvent extends Event {
+
+	@Label("Length")
+	@Description("Bytes in the frame, not counting the delimiter")
+	@DataAmount
+	public int length;
+
+	@Label("Message Number")
+	@Description("The sequence number in the message, -1 if it couldn't be parsed")
+	public long messageNumber;
+}
@@ -0,0 +1,37 @@
+package com.orc.io.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event committed when a socket write doesn't take everything it was
+ * given, meaning the peer or the network isn't keeping up.
+ * 
+ * @author jeff
+ *
+ */
+@Name("com.orc.io.PartialWrite")
+@Label("Partial Write")
+@Category({ "SimpleNio", "Connection" })
+@Description("A non-blocking write left data behind")
+@StackTrace(false)
+public class PartialWriteEvent extends Event {
+
+	@Label("Connection Id")
+	public long connectionId;
+
+	@Label("Requested")
+	@Description("Bytes offered to the socket")
+	@DataAmount
+	public int requested;
+
+	@Label("Written")
+	@Description("Bytes the socket took")
+	@DataAmount
+	public int written;
+}
@@ -0,0 +1,46 @@
+package com.orc.io.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event covering the work in one pass of a multiplexer's loop, from
+ * select() returning to having dispatched every ready key.  Time spent
+ * blocked in select() beforehand is kept in a field of its own rather than
+ * counted in the duration, so the threshold picks out slow dispatch and not
+ * a quiet loop waiting for traffic.
+ * 
+ * Loops can run hundreds of thousands of times a second, so by default only
+ * passes whose dispatch takes over 1ms are recorded.  Lower the threshold in the recording's
+ * settings to see every pass.
+ * 
+ * @author jeff
+ *
+ */
+@Name("com.orc.io.SelectIteration")
+@Label("Select Iteration")
+@Category({ "SimpleNio", "Event Loop" })
+@Description("One pass of a multiplexer's select loop")
+@StackTrace(false)
+@Threshold("1 ms")
+public class SelectIterationEvent extends Event {
+
+	@Label("Ready Keys")
+	@Description("Keys select() returned as ready")
+	public int readyKeys;
+
+	@Label("Registered Keys")
+	@Description("Keys registered with the selector")
+	public int registeredKeys;
+
+	@Label("Blocked")
+	@Description("Time spent inside select() before the pass, not part of its duration")
+	@Timespan(Timespan.NANOSECONDS)
+	public long blocked;
+}
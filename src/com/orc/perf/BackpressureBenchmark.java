@@ -0,0 +1,227 @@
+package com.orc.perf;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import com.orc.io.FairReadScheduler;
+import com.orc.server.EchoServer;
+
+/**
+ * Runs a rate limited {@link EchoServer} against a client that reads its
+ * echoes more slowly than it sends, so the server's read scheduler and its
+ * send queue push back on the same connection at the same time.
+ *
+ * The client writes a fixed pattern from one thread and reads the echo back
+ * on another, pausing between reads for the first couple of seconds.  That is
+ * long enough for the server's socket send buffer to fill, so it queues
+ * echoes and pauses reads; once the client catches up the token bucket does
+ * the limiting, and in between the two hand the connection back and forth.
+ *
+ * Three things are checked
+ *
+ * - every byte comes back, in order
+ * - the connection is held to the configured rate, give or take the burst
+ * - the server's loop thread mostly sleeps.  If pausing reads and deferring
+ *   the connection interfered with each other the key would stay selected
+ *   with nothing to read and the loop would spin
+ *
+ * It exits with 1 if any of them fails.
+ *
+ * @author jeff
+ * @see FairReadScheduler
+ */
+public class BackpressureBenchmark {
+
+	private static final int 		BYTES_PER_PASS = 16 * 1024;
+	private static final int 		BURST = 64 * 1024;
+	private static final int 		CHUNK = 8 * 1024;
+	private static final int 		CLIENT_RECEIVE_BUFFER = 16 * 1024;
+	private static final long 		SLOW_READ_PAUSE_MS = 20;
+	private static final long 		SLOW_PHASE_NANOS = 2000000000L;
+	private static final double 	MAX_LOOP_BUSY = 0.2;
+
+	private final int 				port;
+	private final long 				totalBytes;
+	private final long 				bytesPerSecond;
+
+	private long 					echoed;
+	private long 					elapsedNanos;
+	private long 					loopCpuNanos;
+	private volatile IOException 	writeFailure;
+
+	/**
+	 * @param port				The port the in-process server listens on
+	 * @param totalBytes		Bytes the client sends
+	 * @param bytesPerSecond	The server's read rate limit for the connection
+	 */
+	public BackpressureBenchmark(final int port, final long totalBytes, final long bytesPerSecond) {
+		this.port = port;
+		this.totalBytes = totalBytes;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Sends totalBytes through the server and reads them back
+	 *
+	 * @throws IOException if the echo is cut short or doesn't match
+	 */
+	public void run() throws IOException {
+		final EchoServer server = new EchoServer(new InetSocketAddress("127.0.0.1", port));
+		server.setVerbose(false);
+		server.setReadScheduler(new FairReadScheduler(BYTES_PER_PASS, bytesPerSecond, BURST));
+		server.connect();
+		Thread loop = new Thread(new Runnable() {
+			public void run() {
+				server.start();
+			}
+		}, "backpressure-server");
+		loop.setDaemon(true);
+		loop.start();
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final SocketChannel channel = SocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, CLIENT_RECEIVE_BUFFER);
+			channel.connect(new InetSocketAddress("127.0.0.1", port));
+
+			long cpuStarted = threads.getThreadCpuTime(loop.getId());
+			long started = System.nanoTime();
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						send(channel);
+					} catch (IOException e) {
+						writeFailure = e;
+					}
+				}
+			}, "backpressure-writer");
+			writer.setDaemon(true);
+			writer.start();
+
+			receive(channel);
+			elapsedNanos = System.nanoTime() - started;
+			loopCpuNanos = threads.getThreadCpuTime(loop.getId()) - cpuStarted;
+			if (writeFailure != null) {
+				throw writeFailure;
+			}
+		} finally {
+			channel.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * @return Bytes per second through the server over the whole run
+	 */
+	public double getRate() {
+		return echoed * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return The fraction of the run the server's loop thread spent on a CPU
+	 */
+	public double getLoopBusy() {
+		return (double)loopCpuNanos / elapsedNanos;
+	}
+
+	private void send(SocketChannel channel) throws IOException {
+		ByteBuffer out = ByteBuffer.allocateDirect(CHUNK);
+		for (long sent = 0; sent < totalBytes; ) {
+			out.clear();
+			while (out.hasRemaining() && sent + out.position() < totalBytes) {
+				out.put(pattern(sent + out.position()));
+			}
+			out.flip();
+			sent += out.remaining();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads the echo back, dawdling for the first SLOW_PHASE_NANOS
+	 */
+	private void receive(SocketChannel channel) throws IOException {
+		ByteBuffer in = ByteBuffer.allocateDirect(CHUNK);
+		long slowUntil = System.nanoTime() + SLOW_PHASE_NANOS;
+		while (echoed < totalBytes) {
+			in.clear();
+			int read = channel.read(in);
+			if (read < 0) {
+				throw new IOException("Server closed after " + echoed + " of " + totalBytes + " bytes");
+			}
+			in.flip();
+			while (in.hasRemaining()) {
+				byte b = in.get();
+				if (b != pattern(echoed)) {
+					throw new IOException("Echo differs at byte " + echoed);
+				}
+				echoed++;
+			}
+
+			if (System.nanoTime() < slowUntil) {
+				try {
+					Thread.sleep(SLOW_READ_PAUSE_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				}
+			}
+		}
+	}
+
+	private static byte pattern(long offset) {
+		return (byte)(offset % 251);
+	}
+
+	/**
+	 * Arguments, all optional: the port (default 8080), bytes to send
+	 * (default 32MB) and the rate limit in bytes per second (default 16MB)
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		long[] settings = { 8080, 32 * 1024 * 1024, 16 * 1024 * 1024 };
+		for (int i = 0; i < args.length && i < settings.length; i++) {
+			try {
+				settings[i] = Long.parseLong(args[i]);
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid number: " + args[i]);
+				return;
+			}
+		}
+
+		BackpressureBenchmark benchmark = new BackpressureBenchmark((int)settings[0], settings[1], settings[2]);
+		try {
+			benchmark.run();
+		} catch (IOException e) {
+			System.err.println("Failed: " + e);
+			System.exit(1);
+		}
+
+		//the burst can be read on top of the rate
+		double allowed = settings[2] + BURST * 1e9 / benchmark.elapsedNanos;
+		System.out.println(String.format("echoed %d bytes in %.2fs, %.0f bytes/s against a limit of %d",
+				benchmark.echoed, benchmark.elapsedNanos / 1e9, benchmark.getRate(), settings[2]));
+		System.out.println(String.format("server loop busy %.1f%% of the time", benchmark.getLoopBusy() * 100));
+
+		boolean failed = false;
+		if (benchmark.getRate() > allowed * 1.05) {
+			System.err.println("Rate limit not held");
+			failed = true;
+		}
+		if (benchmark.getLoopBusy() > MAX_LOOP_BUSY) {
+			System.err.println("Server loop spinning");
+			failed = true;
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,673 @@
+package com.orc.perf;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.orc.client.EchoClient;
+import com.orc.io.LatencyHistogram;
+import com.orc.server.EchoServer;
+
+/**
+ * An end to end performance regression check for the {@link EchoServer} and
+ * {@link EchoClient}.
+ *
+ * A fixed set of {@link Scenario}s is run, each with a fresh in-process server
+ * and one EchoClient per connection sending generated lines over TCP loopback.
+ * Every scenario is run a few times and the median of each metric kept, which
+ * irons out most of the noise from a busy machine.  The results are
+ * written as JSON
+ *
+ * <pre>
+ * { "tolerances": { "throughput": 0.30, "latency": 0.15, "latencySlackMicros": 20 },
+ *   "hosts": {
+ *     "build01/8cpu/Linux/amd64": {
+ *       "small-1conn": { "messages": 20000, "throughput": 4995.1, "p50": 21.5, ... }, ... } } }
+ * </pre>
+ *
+ * and compared with this host's baseline in a file of the same format,
+ * normally the committed perf/baseline.json.  A paced scenario has regressed when its median latency
+ * rises by more than the latency tolerance plus the slack, its throughput is
+ * set by the rate so it is only printed.  An unpaced scenario has regressed
+ * when its throughput falls by more than the throughput tolerance, its latency
+ * is time spent queued and is only printed.  Either has regressed when it
+ * doesn't finish.  The runner then exits with 1, so a build can fail on it.
+ * The p99 and p999 are printed alongside but never gated, on a loaded machine
+ * they move several fold from one run to the next.
+ *
+ * Baselines only mean something on the machine they were taken on, so the
+ * file keeps one per host.  A host without one fails loudly, with 3, rather
+ * than passing having compared nothing.  After a deliberate change, or on a
+ * new machine, rerun with --update to write the results over that host's
+ * baseline, keeping the others and the tolerances.  Where the host name
+ * changes from run to run, a CI runner say, name the baseline with --host.  A
+ * baseline is always the median of at least five runs per scenario.
+ *
+ * @author jeff
+ * @see TransportBenchmark
+ */
+public class RegressionRunner {
+
+	/**
+	 * One workload: a number of connections, each sending the same number of
+	 * fixed length lines, either as fast as possible or at a set rate
+	 */
+	public static class Scenario {
+
+		final String 	name;
+		final int 		messageLength;
+		final int 		connections;
+		final int 		rate;
+		final int 		messages;
+
+		/**
+		 * @param name			Key in the JSON, must not change once baselined
+		 * @param messageLength	Bytes of data per line, before the client's header
+		 * @param connections	Number of clients, each on its own thread
+		 * @param rate			Messages per second per connection, 0 for as fast as possible
+		 * @param messages		Messages sent by each connection
+		 */
+		public Scenario(final String name, final int messageLength, final int connections, final int rate, final int messages) {
+			this.name = name;
+			this.messageLength = messageLength;
+			this.connections = connections;
+			this.rate = rate;
+			this.messages = messages;
+		}
+	}
+
+	/**
+	 * The scenarios the baseline covers, adding or changing one means
+	 * regenerating the baseline.
+	 * 
+	 * Most are paced well below what the server can take, so their latency is
+	 * the cost of an echo rather than time spent queued behind earlier
+	 * messages, and their throughput only drops if the server stops keeping
+	 * up.  The flood scenario measures how fast it can go, and the large one
+	 * streams lines far longer than either side's buffers
+	 */
+	public static final Scenario[] SCENARIOS = {
+		new Scenario("small-1conn", 32, 1, 5000, 20000),
+		new Scenario("small-8conn", 32, 8, 1000, 4000),
+		new Scenario("medium-1conn", 512, 1, 5000, 20000),
+		new Scenario("flood-1conn", 32, 1, 0, 1000000),
+		new Scenario("large-1conn", 1024 * 1024, 1, 0, 400),
+	};
+
+	/** Tail percentiles, shown next to the median but can't fail the check */
+	private static final String[] 	TAIL_LATENCIES = { "p99", "p999" };
+
+	/** Runs per scenario a baseline is the median of, whatever --repeats says */
+	private static final int 		MIN_BASELINE_REPEATS = 5;
+
+	private static final double 	DEFAULT_THROUGHPUT_TOLERANCE = 0.30;
+	private static final double 	DEFAULT_LATENCY_TOLERANCE = 0.15;
+	private static final double 	DEFAULT_LATENCY_SLACK = 20;
+
+	private final int 				port;
+	private final int 				repeats;
+	private final long 				timeoutMillis;
+
+	/**
+	 * @param port			The port each scenario's server listens on
+	 * @param repeats		Times each scenario is run, the median of each metric is kept
+	 * @param timeoutMillis	How long a single run may take before it counts as failed
+	 */
+	public RegressionRunner(final int port, final int repeats, final long timeoutMillis) {
+		this.port = port;
+		this.repeats = repeats;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs a scenario repeats times
+	 *
+	 * @return Metric name to its median over the runs, throughput in messages/s
+	 * 			and latencies in us.  Null if any run failed to finish
+	 */
+	public Map<String, Double> run(Scenario scenario) throws IOException {
+		List<Map<String, Double>> runs = new ArrayList<Map<String, Double>>();
+		for (int i = 0; i < repeats; i++) {
+			Map<String, Double> result = runOnce(scenario);
+			if (result == null) {
+				return null;
+			}
+			runs.add(result);
+		}
+
+		Map<String, Double> median = new LinkedHashMap<String, Double>();
+		double[] values = new double[runs.size()];
+		for (String metric : runs.get(0).keySet()) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = runs.get(i).get(metric);
+			}
+			Arrays.sort(values);
+			median.put(metric, values[values.length / 2]);
+		}
+		return median;
+	}
+
+	private Map<String, Double> runOnce(Scenario scenario) throws IOException {
+		final EchoServer server = new EchoServer(port);
+		server.setVerbose(false);
+		server.connect();
+		Thread serverThread = start("regression-server", new Runnable() {
+			public void run() {
+				server.start();
+			}
+		});
+
+		String lines = lines(scenario);
+		EchoClient[] clients = new EchoClient[scenario.connections];
+		Thread[] clientThreads = new Thread[scenario.connections];
+		try {
+			for (int i = 0; i < clients.length; i++) {
+				final EchoClient client = new EchoClient(new InetSocketAddress("127.0.0.1", port), null);
+				client.setVerbose(false);
+				client.setExitOnFinish(false);
+				client.setRate(scenario.rate);
+				client.setSource(new StringReader(lines));
+				client.connect();
+				clients[i] = client;
+				clientThreads[i] = start("regression-client-" + i, new Runnable() {
+					public void run() {
+						client.start();
+					}
+				});
+			}
+
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			for (Thread thread : clientThreads) {
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (EchoClient client : clients) {
+				if (client != null && !client.isFinished()) {
+					client.stop();
+				}
+			}
+			server.stop();
+			join(serverThread);
+		}
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long messages = 0;
+		long started = Long.MAX_VALUE;
+		long finished = 0;
+		for (EchoClient client : clients) {
+			if (!client.isFinished()) {
+				System.err.println(scenario.name + ": a client timed out after " + client.getProcessedCount()
+						+ " of " + scenario.messages + " messages");
+				return null;
+			}
+			latency.add(client.getLatency());
+			messages += client.getProcessedCount();
+			started = Math.min(started, client.getStartNanos());
+			finished = Math.max(finished, client.getFinishNanos());
+		}
+
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		result.put("messages", (double)messages);
+		result.put("throughput", messages * 1e9 / (finished - started));
+		result.put("mean", latency.getMean() / 1000.0);
+		result.put("p50", latency.percentile(0.50) / 1000.0);
+		result.put("p99", latency.percentile(0.99) / 1000.0);
+		result.put("p999", latency.percentile(0.999) / 1000.0);
+		result.put("max", latency.getMax() / 1000.0);
+		return result;
+	}
+
+	/**
+	 * Compares results with a baseline and prints a line per metric.  A paced
+	 * scenario's throughput is just the rate it was offered, so it is gated on
+	 * its median latency instead, while a flood or a stream is gated on its
+	 * throughput and its latency, mostly time spent queued, is only reported.
+	 * Tail percentiles are never gated, from one run to the next they move by
+	 * more than any tolerance worth having
+	 *
+	 * @param tolerances	Allowed throughput drop and median latency rise, as
+	 * 						fractions, and the latency slack in us
+	 * @return				The number of regressions
+	 */
+	public static int compare(Map<String, Object> baseline, Map<String, Map<String, Double>> results,
+			Map<String, Double> tolerances, PrintWriter out) {
+		double throughputTolerance = tolerances.get("throughput");
+		double latencyTolerance = tolerances.get("latency");
+		double slack = tolerances.get("latencySlackMicros");
+
+		int regressions = 0;
+		out.println(String.format(Locale.ROOT, "%-14s %-10s %12s %12s %8s", "scenario", "metric", "baseline", "current", "change"));
+		for (Map.Entry<String, Object> entry : baseline.entrySet()) {
+			String name = entry.getKey();
+			@SuppressWarnings("unchecked")
+			Map<String, Object> expected = (Map<String, Object>)entry.getValue();
+			Map<String, Double> actual = results.get(name);
+			if (actual == null) {
+				out.println(String.format(Locale.ROOT, "%-14s did not finish, or wasn't run                REGRESSED", name));
+				regressions++;
+				continue;
+			}
+
+			boolean paced = isPaced(name);
+			double base = number(expected.get("throughput"));
+			double now = actual.get("throughput");
+			boolean bad = !paced && now < base * (1 - throughputTolerance);
+			regressions += bad ? 1 : 0;
+			out.println(line(name, "throughput", base, now, bad, !paced));
+
+			base = number(expected.get("p50"));
+			now = actual.get("p50");
+			bad = paced && now > base * (1 + latencyTolerance) + slack;
+			regressions += bad ? 1 : 0;
+			out.println(line(name, "p50(us)", base, now, bad, paced));
+
+			for (String metric : TAIL_LATENCIES) {
+				if (expected.containsKey(metric)) {
+					out.println(line(name, metric + "(us)", number(expected.get(metric)), actual.get(metric), false, false));
+				}
+			}
+		}
+		for (String name : results.keySet()) {
+			if (!baseline.containsKey(name)) {
+				out.println(String.format(Locale.ROOT, "%-14s not in the baseline, run with --update to add it", name));
+			}
+		}
+		out.flush();
+		return regressions;
+	}
+
+	/**
+	 * @return True for a scenario sent at a set rate, and for one this runner
+	 * 			doesn't know, which is gated on everything
+	 */
+	private static boolean isPaced(String name) {
+		for (Scenario scenario : SCENARIOS) {
+			if (scenario.name.equals(name)) {
+				return scenario.rate > 0;
+			}
+		}
+		return true;
+	}
+
+	private static String line(String scenario, String metric, double base, double now, boolean bad, boolean gated) {
+		double change = base == 0 ? 0 : (now - base) * 100 / base;
+		return String.format(Locale.ROOT, "%-14s %-10s %12.1f %12.1f %+7.1f%% %s", scenario, metric, base, now, change,
+				bad ? " REGRESSED" : gated ? "" : "(not gated)");
+	}
+
+	/**
+	 * Writes results in the baseline's format
+	 *
+	 * @param hosts	Each host's results by scenario, see host()
+	 */
+	public static void write(Map<String, Map<String, Map<String, Double>>> hosts, Map<String, Double> tolerances,
+			File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("{");
+			out.print("  \"tolerances\": ");
+			out.print(json(tolerances));
+			out.println(",");
+			out.println("  \"hosts\": {");
+			int h = 0;
+			for (Map.Entry<String, Map<String, Map<String, Double>>> host : hosts.entrySet()) {
+				out.println("    \"" + host.getKey().replace("\\", "\\\\").replace("\"", "\\\"") + "\": {");
+				int i = 0;
+				for (Map.Entry<String, Map<String, Double>> entry : host.getValue().entrySet()) {
+					out.print("      \"" + entry.getKey() + "\": " + json(entry.getValue()));
+					out.println(++i < host.getValue().size() ? "," : "");
+				}
+				out.println(++h < hosts.size() ? "    }," : "    }");
+			}
+			out.println("  }");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String json(Map<String, Double> values) {
+		StringBuilder json = new StringBuilder("{ ");
+		for (Map.Entry<String, Double> entry : values.entrySet()) {
+			if (json.length() > 2) json.append(", ");
+			json.append('"').append(entry.getKey()).append("\": ");
+			double value = entry.getValue();
+			if (value == Math.rint(value)) {
+				json.append((long)value);
+			} else {
+				json.append(String.format(Locale.ROOT, "%.3f", value));
+			}
+		}
+		return json.append(" }").toString();
+	}
+
+	/**
+	 * @return The host name, processor count, OS and architecture, which is
+	 * 			as close as a baseline can come to saying what machine it is for.
+	 * 			CI runners that get a new host name each time pass --host instead
+	 */
+	public static String host() {
+		String name;
+		try {
+			name = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			name = System.getenv("HOSTNAME") != null ? System.getenv("HOSTNAME") : "unknown";
+		}
+		return name + "/" + Runtime.getRuntime().availableProcessors() + "cpu/"
+				+ System.getProperty("os.name") + "/" + System.getProperty("os.arch");
+	}
+
+	/**
+	 * Turns a host's scenarios, as read from a baseline, back into results
+	 * so write() can put them back
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Map<String, Double>> results(Map<String, Object> scenarios) {
+		Map<String, Map<String, Double>> results = new LinkedHashMap<String, Map<String, Double>>();
+		for (Map.Entry<String, Object> scenario : scenarios.entrySet()) {
+			Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+			for (Map.Entry<String, Object> metric : ((Map<String, Object>)scenario.getValue()).entrySet()) {
+				metrics.put(metric.getKey(), number(metric.getValue()));
+			}
+			results.put(scenario.getKey(), metrics);
+		}
+		return results;
+	}
+
+	private static double number(Object value) {
+		if (!(value instanceof Double)) {
+			throw new IllegalArgumentException("Expected a number in the baseline, found " + value);
+		}
+		return (Double)value;
+	}
+
+	/**
+	 * The lines one client sends, each messageLength letters
+	 */
+	private static String lines(Scenario scenario) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < scenario.messageLength; i++) {
+			line.append((char)('a' + i % 26));
+		}
+		line.append('\n');
+
+		StringBuilder lines = new StringBuilder(line.length() * scenario.messages);
+		for (int i = 0; i < scenario.messages; i++) {
+			lines.append(line);
+		}
+		return lines.toString();
+	}
+
+	private static Thread start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void join(Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Just enough JSON for the baseline: objects, strings, numbers, true,
+	 * false and null.  Numbers come back as Doubles, objects as ordered maps
+	 */
+	static class JsonReader {
+
+		private final String 	text;
+		private int 			pos;
+
+		JsonReader(final String text) {
+			this.text = text;
+		}
+
+		Object read() {
+			Object value = value();
+			skipWhitespace();
+			if (pos != text.length()) throw error("Unexpected trailing text");
+			return value;
+		}
+
+		private Object value() {
+			skipWhitespace();
+			if (pos >= text.length()) throw error("Unexpected end of input");
+			char c = text.charAt(pos);
+			if (c == '{') return object();
+			if (c == '"') return string();
+			if (text.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+			if (text.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+			if (text.startsWith("null", pos)) { pos += 4; return null; }
+			return number();
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+			pos++;//{
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return object;
+			}
+			while (true) {
+				skipWhitespace();
+				String key = string();
+				skipWhitespace();
+				expect(':');
+				object.put(key, value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+				} else {
+					expect('}');
+					return object;
+				}
+			}
+		}
+
+		private String string() {
+			expect('"');
+			StringBuilder string = new StringBuilder();
+			while (peek() != '"') {
+				char c = text.charAt(pos++);
+				if (c == '\\') {
+					c = text.charAt(pos++);
+					if (c == 'u') {
+						c = (char)Integer.parseInt(text.substring(pos, pos + 4), 16);
+						pos += 4;
+					} else if (c == 'n') {
+						c = '\n';
+					} else if (c == 't') {
+						c = '\t';
+					}
+				}
+				string.append(c);
+			}
+			pos++;//closing quote
+			return string.toString();
+		}
+
+		private Double number() {
+			int start = pos;
+			while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+				pos++;
+			}
+			try {
+				return Double.valueOf(text.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error("Expected a value");
+			}
+		}
+
+		private char peek() {
+			if (pos >= text.length()) throw error("Unexpected end of input");
+			return text.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c) throw error("Expected '" + c + "'");
+			pos++;
+		}
+
+		private void skipWhitespace() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at offset " + pos);
+		}
+	}
+
+	/**
+	 * Options, all optional
+	 *
+	 * --baseline file		The baseline to compare with, default perf/baseline.json
+	 * --output file		Where the results are written, default build/perf-results.json
+	 * --update				Write the results over this host's baseline instead of failing, from at least five runs
+	 * --host name			The baseline to use in the file, default host()
+	 * --port n				The port servers listen on, default 8080
+	 * --repeats n			Runs per scenario, default 5
+	 * --timeout seconds	How long one run may take, default 60
+	 *
+	 * Exits with 0 if nothing regressed, 1 if something did, 2 on an error and
+	 * 3 if the file has no baseline for this host, run with --update to take one
+	 *
+	 * @param args
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) {
+		File baselineFile = new File("perf/baseline.json");
+		File outputFile = new File("build/perf-results.json");
+		boolean update = false;
+		String host = host();
+		int port = 8080;
+		int repeats = 5;
+		int timeout = 60;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--update")) {
+					update = true;
+				} else if (i + 1 >= args.length) {
+					System.err.println("Missing value for " + args[i]);
+					System.exit(2);
+				} else if (args[i].equals("--baseline")) {
+					baselineFile = new File(args[++i]);
+				} else if (args[i].equals("--output")) {
+					outputFile = new File(args[++i]);
+				} else if (args[i].equals("--host")) {
+					host = args[++i];
+				} else if (args[i].equals("--port")) {
+					port = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--repeats")) {
+					repeats = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--timeout")) {
+					timeout = Integer.parseInt(args[++i]);
+				} else {
+					System.err.println("Unknown option: " + args[i]);
+					System.exit(2);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number: " + e.getMessage());
+			System.exit(2);
+		}
+
+		try {
+			Map<String, Map<String, Map<String, Double>>> hosts = new LinkedHashMap<String, Map<String, Map<String, Double>>>();
+			Map<String, Object> baseline = null;
+			Map<String, Double> tolerances = new LinkedHashMap<String, Double>();
+			tolerances.put("throughput", DEFAULT_THROUGHPUT_TOLERANCE);
+			tolerances.put("latency", DEFAULT_LATENCY_TOLERANCE);
+			tolerances.put("latencySlackMicros", DEFAULT_LATENCY_SLACK);
+			if (baselineFile.exists()) {
+				String text = new String(Files.readAllBytes(baselineFile.toPath()), StandardCharsets.UTF_8);
+				Map<String, Object> root = (Map<String, Object>)new JsonReader(text).read();
+				Map<String, Object> baselines = (Map<String, Object>)root.get("hosts");
+				if (baselines != null) {
+					for (Map.Entry<String, Object> entry : baselines.entrySet()) {
+						hosts.put(entry.getKey(), results((Map<String, Object>)entry.getValue()));
+					}
+					baseline = (Map<String, Object>)baselines.get(host);
+				}
+				Map<String, Object> configured = (Map<String, Object>)root.get("tolerances");
+				if (configured != null) {
+					for (String key : tolerances.keySet()) {
+						if (configured.containsKey(key)) tolerances.put(key, number(configured.get(key)));
+					}
+				}
+			}
+
+			//another machine's numbers can't be compared with, so a host without a baseline fails
+			if (update) {
+				repeats = Math.max(repeats, MIN_BASELINE_REPEATS);
+			} else if (baseline == null) {
+				System.err.println("****************************************************************");
+				System.err.println("NO BASELINE FOR HOST " + host + " IN " + baselineFile + ", NOTHING COMPARED");
+				System.err.println("Baselines there are for " + (hosts.isEmpty() ? "no hosts" : hosts.keySet()));
+				System.err.println("Take one here with --update, and --host <name> where the host name changes");
+				System.err.println("****************************************************************");
+				System.exit(3);
+			}
+
+			RegressionRunner runner = new RegressionRunner(port, repeats, timeout * 1000L);
+			Map<String, Map<String, Double>> results = new LinkedHashMap<String, Map<String, Double>>();
+			for (Scenario scenario : SCENARIOS) {
+				System.out.println("Running " + scenario.name);
+				Map<String, Double> result = runner.run(scenario);
+				if (result != null) {
+					results.put(scenario.name, result);
+				}
+			}
+
+			write(Collections.singletonMap(host, results), tolerances, outputFile);
+			System.out.println("Results written to " + outputFile);
+
+			if (update) {
+				if (results.size() < SCENARIOS.length) {
+					System.err.println("Not every scenario finished, baseline left as it was");
+					System.exit(1);
+				}
+				hosts.put(host, results);
+				write(hosts, tolerances, baselineFile);
+				System.out.println("Baseline for " + host + " in " + baselineFile + " updated");
+				System.exit(0);
+			}
+
+			int regressions = compare(baseline, results, tolerances, new PrintWriter(System.out));
+			System.out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+			System.exit(regressions == 0 ? 0 : 1);
+		} catch (IOException e) {
+			System.err.println("IOException: " + e);
+			e.printStackTrace();
+			System.exit(2);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Bad baseline " + baselineFile + ": " + e.getMessage());
+			System.exit(2);
+		}
+	}
+}
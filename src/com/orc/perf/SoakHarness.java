@@ -0,0 +1,359 @@
+package com.orc.perf;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.orc.io.LoopProfiler;
+import com.orc.io.SimpleServerMultiplexer;
+import com.orc.server.EchoServer;
+
+/**
+ * A soak test for the {@link EchoServer} and the multiplexer underneath it.
+ *
+ * The harness starts an EchoServer in-process and then ramps up the number of
+ * loopback connections in fixed steps.  After each step it records
+ *
+ * - heap and direct memory in use, and the cost of each connection
+ * - how fast the server accepted the step's new connections
+ * - round trip percentiles for a handful of active connections while
+ *   the rest sit idle in the selector's key set
+ *
+ * The results are written as a tab separated report, one row per step, so two
+ * runs can be diffed against each other.  Each row is followed by comment lines
+ * with the server's receive buffer sizes and a {@link LoopProfiler} summary of
+ * its event loop during the step.
+ *
+ * Both ends of every connection live in this JVM, so the memory figures are the
+ * cost of a connection to the whole process and not just to the server.  Large
+ * steps will need a raised file descriptor limit (ulimit -n), and past ~28k
+ * connections the client side runs out of ephemeral ports unless it spreads
+ * its connections over several loopback addresses (Linux answers on all of
+ * 127.0.0.0/8).
+ *
+ * @author jeff
+ * @see EchoServer
+ */
+public class SoakHarness {
+
+	private static final int		MESSAGE_LEN = 64;
+	private static final long		ACCEPT_TIMEOUT_NANOS = 10000000000L;//10s without an accept ends the ramp
+
+	private final int 				port;
+	private final int 				maxConnections;
+	private final int 				stepSize;
+	private final int 				activeConnections;
+	private final int 				pingsPerConnection;
+	private final int 				loopbackAddresses;
+
+	private final AtomicLong 		accepted = new AtomicLong();
+	private final AtomicReference<IOException> acceptError = new AtomicReference<IOException>();
+	private EchoServer 				server;
+	private final LoopProfiler 		profiler = new LoopProfiler(1000000);
+	private final List<SocketChannel> connections = new ArrayList<SocketChannel>();
+	private final ByteBuffer 		ping = ByteBuffer.allocateDirect(MESSAGE_LEN);
+	private final ByteBuffer 		pong = ByteBuffer.allocateDirect(MESSAGE_LEN);
+
+	private long 					baseHeap;
+	private long 					baseDirect;
+
+	/**
+	 * @param port					The port the in-process server will listen on
+	 * @param maxConnections		The number of connections to ramp up to
+	 * @param stepSize				How many connections are added per step
+	 * @param activeConnections		How many connections send traffic at each step
+	 * @param pingsPerConnection	Round trips made by each active connection per step
+	 * @param loopbackAddresses		How many 127.0.0.x addresses connections are spread over
+	 */
+	public SoakHarness(final int port, final int maxConnections, final int stepSize,
+			final int activeConnections, final int pingsPerConnection, final int loopbackAddresses) {
+		this.port = port;
+		this.maxConnections = maxConnections;
+		this.stepSize = stepSize;
+		this.activeConnections = activeConnections;
+		this.pingsPerConnection = pingsPerConnection;
+		this.loopbackAddresses = loopbackAddresses;
+
+		for (int i = 0; i < MESSAGE_LEN - 1; i++) {
+			ping.put((byte)('a' + i % 26));
+		}
+		ping.put((byte)'\n');
+	}
+
+	/**
+	 * Starts a quiet EchoServer on a daemon thread.  Accepts go through the
+	 * server's own onAccept, so the connections are set up as in production,
+	 * and are counted so the harness can tell when the server has caught up
+	 * with the clients.  Failed accepts are kept so it can tell when the
+	 * server never will
+	 *
+	 * @throws IOException
+	 */
+	public void startServer() throws IOException {
+		server = new EchoServer(port) {
+			public void onAccept(ServerSocketChannel channel, Object attachment) {
+				super.onAccept(channel, attachment);
+				accepted.incrementAndGet();
+			}
+		};
+		server.setVerbose(false);
+		server.setAcceptErrorListener(new SimpleServerMultiplexer.AcceptErrorListener() {
+			public void onAcceptError(IOException e) {
+				acceptError.compareAndSet(null, e);
+			}
+		});
+		//count slow callbacks rather than printing them, the report has the total
+		profiler.setSlowCallbackListener(new LoopProfiler.SlowCallbackListener() {
+			public void onSlowCallback(LoopProfiler.Event event, long connectionId, Class<?> listenerClass, long nanos) {}
+		});
+		server.setProfiler(profiler);
+		server.connect();
+
+		final EchoServer server = this.server;
+		Thread loop = new Thread(new Runnable() {
+			public void run() {
+				server.start();
+			}
+		}, "soak-server");
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	/**
+	 * Ramps the connection count step by step, writing a report row after each step.
+	 *
+	 * The ramp stops early if a connection can't be opened or the server
+	 * can't accept one, normally because the process ran out of file
+	 * descriptors or ports, and the report says so.
+	 *
+	 * @param report	Where the rows are written
+	 */
+	public void run(PrintWriter report) {
+		settle();
+		baseHeap = heapUsed();
+		baseDirect = directUsed();
+
+		report.println("# SoakHarness maxConnections=" + maxConnections + " step=" + stepSize
+				+ " active=" + activeConnections + " pings=" + pingsPerConnection
+				+ " messageLen=" + MESSAGE_LEN);
+		report.println("# baseHeap=" + baseHeap + " baseDirect=" + baseDirect);
+		report.println("connections\theapBytes\theapPerConn\tdirectBytes\tdirectPerConn\tacceptPerSec"
+				+ "\trttP50us\trttP90us\trttP99us\trttP999us\trttMaxUs");
+		report.flush();
+
+		while (connections.size() < maxConnections) {
+			int target = Math.min(maxConnections, connections.size() + stepSize);
+
+			double acceptRate;
+			try {
+				acceptRate = openConnections(target);
+			} catch (IOException e) {
+				report.println("# stopped at " + connections.size() + " connections, " + accepted.get() + " accepted: " + e);
+				break;
+			}
+
+			settle();
+			long heap = heapUsed() - baseHeap;
+			long direct = directUsed() - baseDirect;
+			int count = connections.size();
+
+			long[] rtt;
+			try {
+				rtt = roundTrips();
+			} catch (IOException e) {
+				report.println("# round trips failed at " + count + " connections: " + e);
+				break;
+			}
+
+			report.println(count + "\t" + heap + "\t" + heap / count + "\t" + direct + "\t" + direct / count
+					+ "\t" + (long)acceptRate
+					+ "\t" + percentile(rtt, 0.50) + "\t" + percentile(rtt, 0.90) + "\t" + percentile(rtt, 0.99)
+					+ "\t" + percentile(rtt, 0.999) + "\t" + percentile(rtt, 1.0));
+			//read off the loop thread, so only a rough picture
+			report.println("# receive buffers " + server.getReceiveAllocator());
+			profiler.report(report, "# ");
+			profiler.reset();
+			report.flush();
+		}
+	}
+
+	/**
+	 * Closes every client connection opened by the harness
+	 */
+	public void close() {
+		for (SocketChannel channel : connections) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Error closing channel: " + e);
+			}
+		}
+		connections.clear();
+	}
+
+	/**
+	 * Opens connections until there are target of them and waits for the
+	 * server to accept them all
+	 *
+	 * @param target 	The total number of connections wanted
+	 * @return 			Connections accepted per second during this step
+	 * @throws IOException if a connection can't be opened, the server failed to
+	 * 			accept one or it has stopped accepting
+	 */
+	private double openConnections(int target) throws IOException {
+		int opened = target - connections.size();
+		long start = System.nanoTime();
+
+		while (connections.size() < target) {
+			int host = 1 + connections.size() % loopbackAddresses;
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0." + host, port));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			connections.add(channel);
+		}
+
+		long count = accepted.get();
+		long progressed = System.nanoTime();
+		while (count < target) {
+			IOException failed = acceptError.get();
+			if (failed != null) {
+				throw new IOException("server failed to accept: " + failed.getMessage(), failed);
+			}
+			long now = System.nanoTime();
+			if (accepted.get() != count) {
+				count = accepted.get();
+				progressed = now;
+			} else if (now - progressed > ACCEPT_TIMEOUT_NANOS) {
+				throw new IOException("server stopped accepting at " + count + " of " + target);
+			}
+			Thread.yield();
+		}
+
+		long elapsed = System.nanoTime() - start;
+		return opened * 1e9 / elapsed;
+	}
+
+	/**
+	 * Each active connection makes pingsPerConnection blocking round trips
+	 * while every other connection stays idle
+	 *
+	 * @return The sorted round trip times in microseconds
+	 * @throws IOException
+	 */
+	private long[] roundTrips() throws IOException {
+		int active = Math.min(activeConnections, connections.size());
+		long[] rtt = new long[active * pingsPerConnection];
+		int n = 0;
+
+		//spread the active connections across the whole key set
+		int stride = Math.max(1, connections.size() / Math.max(1, active));
+		for (int p = 0; p < pingsPerConnection; p++) {
+			for (int a = 0; a < active; a++) {
+				SocketChannel channel = connections.get(a * stride);
+
+				long start = System.nanoTime();
+				ping.clear();
+				while (ping.hasRemaining()) {
+					channel.write(ping);
+				}
+				pong.clear();
+				while (pong.hasRemaining()) {
+					if (channel.read(pong) < 0) throw new IOException("Server closed connection");
+				}
+				rtt[n++] = (System.nanoTime() - start) / 1000;
+			}
+		}
+
+		Arrays.sort(rtt);
+		return rtt;
+	}
+
+	/**
+	 * @param sorted	Sorted samples
+	 * @param p			The percentile wanted, 0.0 to 1.0
+	 * @return			The sample at that percentile, or -1 if there are none
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return -1;
+		int index = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Gives the collector a couple of chances to clear out garbage so the memory
+	 * figures reflect live objects
+	 */
+	private static void settle() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static long heapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long directUsed() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName())) return pool.getMemoryUsed();
+		}
+		return 0;
+	}
+
+	/**
+	 * Arguments, all optional, in order:
+	 * port, max connections, step size, active connections, pings per connection,
+	 * loopback addresses and the report file.
+	 *
+	 * Defaults are 8080, 10000, 1000, 16, 100, 1 and the report goes to System.out
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int[] settings = { 8080, 10000, 1000, 16, 100, 1 };
+		String reportFile = null;
+		for (int i = 0; i < args.length; i++) {
+			if (i < settings.length) {
+				try {
+					settings[i] = Integer.parseInt(args[i]);
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid number: " + args[i]);
+					return;
+				}
+			} else {
+				reportFile = args[i];
+			}
+		}
+
+		SoakHarness harness = new SoakHarness(settings[0], settings[1], settings[2],
+				settings[3], settings[4], Math.max(1, settings[5]));
+		PrintWriter report = null;
+		try {
+			report = reportFile == null ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(reportFile));
+			harness.startServer();
+			harness.run(report);
+		} catch (IOException e) {
+			System.err.println("IOException: " + e);
+			e.printStackTrace();
+		} finally {
+			harness.close();
+			if (report != null) report.close();
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package com.orc.perf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.orc.client.EchoClient;
+import com.orc.io.LatencyHistogram;
+import com.orc.io.SimpleClientMultiplexer;
+import com.orc.io.TlsStage;
+import com.orc.server.EchoServer;
+
+/**
+ * Measures what TLS adds to an echo, each figure next to its plaintext twin.
+ *
+ * - engine: one message wrapped by a client SSLEngine and unwrapped by a
+ *   server one, in memory.  The pure crypto cost per message
+ * - tcp and tcp+tls: one message at a time round trips to an in-process
+ *   {@link EchoServer}, through the multiplexers so the TLS rows include
+ *   the {@link TlsStage} and its buffer handling
+ * - flood and flood+tls: an {@link EchoClient} sending as fast as it can,
+ *   reported as the cost per message in throughput terms, not counting the
+ *   handshake
+ *
+ * The handshakes are timed by the stages and printed at the end.
+ *
+ * Without a keystore one is made with the JDK's keytool, a self signed EC key
+ * that both sides use, in a temporary directory.
+ *
+ * @author jeff
+ *
+ */
+public class TlsBenchmark {
+
+	private static final int 		BATCH = 1000;
+	private static final int 		ENGINE_WARM_UP = 200000;//the crypto intrinsics take a while to kick in
+	private static final String 	ALIAS = "orc-benchmark";
+
+	private final SSLContext 		context;
+	private final int 				messages;
+	private final int 				payloadLength;
+	private final int 				port;
+
+	private final LatencyHistogram 	handshakes = new LatencyHistogram();
+
+	/**
+	 * @param context		Initialised with a key and with trust in it
+	 * @param messages		Messages per measurement
+	 * @param payloadLength	Bytes of data in each message
+	 * @param port			TCP port for the in-process server
+	 */
+	public TlsBenchmark(final SSLContext context, final int messages, final int payloadLength, final int port) {
+		this.context = context;
+		this.messages = messages;
+		this.payloadLength = payloadLength;
+		this.port = port;
+	}
+
+	/**
+	 * Wraps and unwraps messages between two engines in memory, BATCH at a time
+	 *
+	 * @return Nanoseconds per message for each batch
+	 */
+	public LatencyHistogram engine() throws IOException {
+		SSLEngine client = context.createSSLEngine("localhost", port);
+		client.setUseClientMode(true);
+		SSLEngine server = context.createSSLEngine();
+		server.setUseClientMode(false);
+
+		int packet = client.getSession().getPacketBufferSize();
+		int application = client.getSession().getApplicationBufferSize();
+		ByteBuffer toServer = ByteBuffer.allocateDirect(4 * packet);
+		ByteBuffer toClient = ByteBuffer.allocateDirect(4 * packet);
+		ByteBuffer received = ByteBuffer.allocateDirect(application);
+
+		client.beginHandshake();
+		server.beginHandshake();
+		for (int steps = 0; handshaking(client) || handshaking(server); steps++) {
+			if (steps > 1000) {
+				throw new IOException("In memory handshake didn't finish");
+			}
+			step(client, toClient, toServer, received);
+			step(server, toServer, toClient, received);
+		}
+		toServer.clear();
+
+		ByteBuffer message = encode(1);
+		LatencyHistogram perMessage = new LatencyHistogram();
+		for (int round = 0; round < 2; round++) {//the first round is warm up
+			perMessage.reset();
+			int count = round == 0 ? Math.max(messages, ENGINE_WARM_UP) : messages;
+			for (int sent = 0; sent < count; sent += BATCH) {
+				long start = System.nanoTime();
+				for (int i = 0; i < BATCH; i++) {
+					message.rewind();
+					client.wrap(message, toServer);
+					toServer.flip();
+					server.unwrap(toServer, received);
+					toServer.clear();
+					received.clear();
+				}
+				perMessage.record((System.nanoTime() - start) / BATCH);
+			}
+		}
+		return perMessage;
+	}
+
+	/**
+	 * Times one at a time round trips to an in-process EchoServer through a
+	 * client multiplexer
+	 *
+	 * @param secure	True to run both ends over TLS
+	 * @return Round trip times in nanoseconds
+	 */
+	public LatencyHistogram roundTrips(boolean secure) throws IOException {
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+		TlsStage serverTls = secure ? new TlsStage(context) : null;
+		TlsStage tls = secure ? new TlsStage(context) : null;
+		final EchoServer server = newServer(serverTls);
+		Thread loop = start(server);
+		try {
+			TransportBenchmark.PingPong client = new TransportBenchmark.PingPong(encode(1), messages);
+			SimpleClientMultiplexer multiplexer = new SimpleClientMultiplexer(client, address);
+			multiplexer.setTlsStage(tls);
+			client.multiplexer = multiplexer;
+			multiplexer.connect();
+			multiplexer.run();//returns once the client is done
+			collect(tls);
+			return client.rtt;
+		} finally {
+			stop(server, loop);
+			close(tls);
+			close(serverTls);
+		}
+	}
+
+	/**
+	 * Floods an in-process EchoServer from an EchoClient
+	 *
+	 * @param secure	True to run both ends over TLS
+	 * @return Nanoseconds per message echoed
+	 */
+	public double flood(boolean secure) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		String line = new String(payload());
+		for (int i = 0; i < messages; i++) {
+			lines.append(line).append('\n');
+		}
+
+		TlsStage serverTls = secure ? new TlsStage(context) : null;
+		TlsStage tls = secure ? new TlsStage(context) : null;
+		final EchoServer server = newServer(serverTls);
+		Thread loop = start(server);
+		try {
+			EchoClient client = new EchoClient(new InetSocketAddress("127.0.0.1", port), null);
+			client.setVerbose(false);
+			client.setExitOnFinish(false);
+			client.setSource(new StringReader(lines.toString()));
+			client.setTlsStage(tls);
+			client.connect();
+			client.start();
+			collect(tls);
+			if (!client.isFinished()) {
+				throw new IOException("Flood stopped after " + client.getProcessedCount() + " of " + messages + " messages");
+			}
+			//the clock starts on connect, nothing can be sent until the handshake is done
+			long handshake = tls == null ? 0 : tls.getHandshakeTimes().getMax();
+			return (double)(client.getFinishNanos() - client.getStartNanos() - handshake) / client.getProcessedCount();
+		} finally {
+			stop(server, loop);
+			close(tls);
+			close(serverTls);
+		}
+	}
+
+	/**
+	 * @return How long the client side handshakes took, in ns
+	 */
+	public LatencyHistogram getHandshakes() {
+		return handshakes;
+	}
+
+	/**
+	 * @param tls	The server's stage, null for plaintext
+	 */
+	private EchoServer newServer(TlsStage tls) throws IOException {
+		EchoServer server = new EchoServer(new InetSocketAddress("127.0.0.1", port));
+		server.setVerbose(false);
+		server.setTlsStage(tls);
+		server.connect();
+		return server;
+	}
+
+	/**
+	 * @return The server's loop thread, join it after stopping the server
+	 */
+	private static Thread start(final EchoServer server) {
+		Thread loop = new Thread(new Runnable() {
+			public void run() {
+				server.start();
+			}
+		}, "benchmark-server");
+		loop.setDaemon(true);
+		loop.start();
+		return loop;
+	}
+
+	/**
+	 * Stops the server and waits for its loop to close the listener, so the
+	 * next measurement can bind the same port
+	 */
+	private static void stop(EchoServer server, Thread loop) {
+		server.stop();
+		try {
+			loop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void collect(TlsStage tls) {
+		if (tls != null) {
+			handshakes.add(tls.getHandshakeTimes());
+		}
+	}
+
+	private static void close(TlsStage tls) {
+		if (tls != null) {
+			tls.close();
+		}
+	}
+
+	private static boolean handshaking(SSLEngine engine) {
+		SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+		return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && status != SSLEngineResult.HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * Moves an in-memory handshake along by one step of one engine
+	 */
+	private static void step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer scratch) throws IOException {
+		switch (engine.getHandshakeStatus()) {
+		case NEED_WRAP:
+			engine.wrap(ByteBuffer.allocate(0), out);
+			break;
+		case NEED_UNWRAP:
+		case NEED_UNWRAP_AGAIN:
+			in.flip();
+			engine.unwrap(in, scratch);
+			in.compact();
+			scratch.clear();
+			break;
+		case NEED_TASK:
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private byte[] payload() {
+		byte[] payload = new byte[payloadLength];
+		for (int i = 0; i < payloadLength; i++) {
+			payload[i] = (byte)('a' + i % 26);
+		}
+		return payload;
+	}
+
+	/**
+	 * Builds count messages in the EchoClient's format into a direct buffer
+	 */
+	private ByteBuffer encode(int count) {
+		String payload = new String(payload());
+		StringBuilder text = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= count; i++) {
+			text.append(now).append('*').append(i).append('*').append(payload).append('\n');
+		}
+
+		byte[] bytes = text.toString().getBytes();
+		ByteBuffer encoded = ByteBuffer.allocateDirect(bytes.length);
+		encoded.put(bytes).flip();
+		return encoded;
+	}
+
+	/**
+	 * An SSLContext whose key, and only trusted certificate, come from a
+	 * PKCS12 keystore
+	 *
+	 * @throws GeneralSecurityException if the keystore can't be used
+	 */
+	public static SSLContext newContext(File keystore, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore keys = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keystore);
+		try {
+			keys.load(in, password);
+		} finally {
+			in.close();
+		}
+
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keys, password);
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keys);
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+		return context;
+	}
+
+	/**
+	 * Makes a self signed keystore with the keytool of the running JDK
+	 *
+	 * @throws IOException if keytool isn't there or fails
+	 */
+	public static File newKeystore(char[] password) throws IOException {
+		File directory = File.createTempFile("orc-tls", "");
+		directory.delete();
+		directory.mkdir();
+		File keystore = new File(directory, "benchmark.p12");
+		keystore.deleteOnExit();
+		directory.deleteOnExit();
+
+		String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+		ProcessBuilder builder = new ProcessBuilder(keytool, "-genkeypair", "-alias", ALIAS,
+				"-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "2",
+				"-ext", "SAN=dns:localhost,ip:127.0.0.1",//the client checks the host it connected to
+				"-storetype", "PKCS12", "-keystore", keystore.getPath(),
+				"-storepass", new String(password), "-keypass", new String(password));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		try {
+			int exit = builder.start().waitFor();
+			if (exit != 0) {
+				throw new IOException("keytool exited with " + exit);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for keytool");
+		}
+		return keystore;
+	}
+
+	private static void print(String row, LatencyHistogram histogram) {
+		System.out.println(String.format("%-10s %10d %10.2f %10.2f %10.2f %10.2f",
+				row, histogram.getCount(), histogram.getMean() / 1000.0, histogram.percentile(0.50) / 1000.0,
+				histogram.percentile(0.99) / 1000.0, histogram.percentile(0.999) / 1000.0));
+	}
+
+	/**
+	 * Arguments, all optional: messages per measurement (default 20000),
+	 * payload bytes per message (default 32), the TCP port (default 8080),
+	 * and a PKCS12 keystore and its password, by default a fresh self signed one
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int[] settings = { 20000, 32, 8080 };
+		for (int i = 0; i < args.length && i < settings.length; i++) {
+			try {
+				settings[i] = Integer.parseInt(args[i]);
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid number: " + args[i]);
+				return;
+			}
+		}
+
+		try {
+			char[] password = args.length > 4 ? args[4].toCharArray() : "orc-benchmark".toCharArray();
+			File keystore = args.length > 3 ? new File(args[3]) : newKeystore(password);
+			TlsBenchmark benchmark = new TlsBenchmark(newContext(keystore, password), settings[0], settings[1], settings[2]);
+
+			System.out.println("engine is per message, tcp per round trip");
+			System.out.println(String.format("%-10s %10s %10s %10s %10s %10s", "", "samples", "mean(us)", "p50(us)", "p99(us)", "p999(us)"));
+			print("engine", benchmark.engine());
+			LatencyHistogram plain = benchmark.roundTrips(false);
+			print("tcp", plain);
+			LatencyHistogram secure = benchmark.roundTrips(true);
+			print("tcp+tls", secure);
+
+			double floodPlain = benchmark.flood(false);
+			double floodSecure = benchmark.flood(true);
+			System.out.println();
+			System.out.println(String.format("flood      %10.2f us/message", floodPlain / 1000.0));
+			System.out.println(String.format("flood+tls  %10.2f us/message", floodSecure / 1000.0));
+			System.out.println(String.format("TLS adds   %10.2f us per round trip (p50), %.2f us per message flooding",
+					(secure.percentile(0.50) - plain.percentile(0.50)) / 1000.0, (floodSecure - floodPlain) / 1000.0));
+			System.out.println("Handshake(us): " + benchmark.getHandshakes().summary(1000));
+		} catch (IOException e) {
+			System.err.println("IOException: " + e);
+			e.printStackTrace();
+		} catch (GeneralSecurityException e) {
+			System.err.println("Can't set up TLS: " + e);
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package com.orc.perf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.orc.client.EchoClient;
+import com.orc.io.AdaptiveReceiveAllocator;
+import com.orc.io.LatencyHistogram;
+import com.orc.io.LocalTransport;
+import com.orc.io.MultiplexAdapter;
+import com.orc.io.MultiplexListener;
+import com.orc.io.SharedMemoryAddress;
+import com.orc.io.SimpleClientContext;
+import com.orc.io.SimpleClientMultiplexer;
+import com.orc.server.EchoServer;
+
+/**
+ * Splits the cost of an echo between our code and the kernel.
+ *
+ * Four measurements are printed side by side
+ *
+ * - memory: encoded messages are fed to {@link EchoClient#onRead} from an
+ *   in-memory channel, which times framing, parsing and dispatch with no
+ *   system calls at all.  The figure is the cost per message
+ * - local: round trips to an in-process {@link EchoServer} over an AF_UNIX
+ *   socket, see {@link LocalTransport}
+ * - tcp: the same round trips over TCP loopback
+ * - shm: the same round trips over a {@link SharedMemoryAddress}, with both
+ *   ends busy spinning if there are cores to spare.  No system calls at all,
+ *   just the handoff between two threads
+ *
+ * local minus memory is roughly the cost of the system calls and wakeups,
+ * tcp minus local the cost of the TCP/IP stack.  shm is the floor for a same
+ * host round trip.
+ *
+ * @author jeff
+ *
+ */
+public class TransportBenchmark {
+
+	private static final int 		BATCH = 1000;
+
+	private final int 				messages;
+	private final int 				payloadLength;
+
+	/**
+	 * @param messages		Messages per measurement
+	 * @param payloadLength	Bytes of data in each message
+	 */
+	public TransportBenchmark(final int messages, final int payloadLength) {
+		this.messages = messages;
+		this.payloadLength = payloadLength;
+	}
+
+	/**
+	 * Feeds the EchoClient pre-encoded messages through an in-memory channel,
+	 * BATCH at a time
+	 *
+	 * @return Nanoseconds per message for each batch
+	 */
+	public LatencyHistogram memory() throws IOException {
+		ByteBuffer encoded = encode(BATCH);
+		MemoryChannel channel = new MemoryChannel(encoded, 8 * 1024);
+
+		EchoClient client = new EchoClient("localhost", 0, null);
+		client.setVerbose(false);
+		MultiplexListener listener = client;
+
+		AdaptiveReceiveAllocator allocator = new AdaptiveReceiveAllocator(64, 8 * 1024, 64 * 1024, true);
+		allocator.setTuneSocketBuffer(false);
+		SimpleClientContext context = new SimpleClientContext();
+		context.receiveBuffer = allocator.newBuffer(null);
+
+		LatencyHistogram perMessage = new LatencyHistogram();
+		for (int round = 0; round < 2; round++) {//the first round is warm up
+			perMessage.reset();
+			for (int sent = 0; sent < messages; sent += BATCH) {
+				channel.rewind();
+				long start = System.nanoTime();
+				while (channel.hasRemaining()) {
+					listener.onRead(channel, context);
+				}
+				perMessage.record((System.nanoTime() - start) / BATCH);
+			}
+		}
+		return perMessage;
+	}
+
+	/**
+	 * Starts a quiet EchoServer on address and times blocking round trips to it
+	 *
+	 * @return Round trip times in nanoseconds
+	 */
+	public LatencyHistogram roundTrips(SocketAddress address) throws IOException {
+		final EchoServer server = new EchoServer(address);
+		server.setVerbose(false);
+		server.connect();
+		Thread loop = new Thread(new Runnable() {
+			public void run() {
+				server.start();
+			}
+		}, "benchmark-server");
+		loop.setDaemon(true);
+		loop.start();
+
+		ByteBuffer ping = encode(1);
+		ByteBuffer pong = ByteBuffer.allocateDirect(ping.capacity());
+		LatencyHistogram rtt = new LatencyHistogram();
+
+		SocketChannel channel = SocketChannel.open(address);
+		try {
+			if (address instanceof InetSocketAddress) {
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			}
+			for (int round = 0; round < 2; round++) {//the first round is warm up
+				rtt.reset();
+				for (int i = 0; i < messages; i++) {
+					long start = System.nanoTime();
+					ping.clear();
+					while (ping.hasRemaining()) {
+						channel.write(ping);
+					}
+					pong.clear();
+					while (pong.hasRemaining()) {
+						if (channel.read(pong) < 0) throw new IOException("Server closed connection");
+					}
+					rtt.record(System.nanoTime() - start);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		return rtt;
+	}
+
+	/**
+	 * Starts a quiet EchoServer on a shared memory address and times round
+	 * trips to it from a {@link PingPong} client.  Both loops poll on their
+	 * own thread for the whole run
+	 *
+	 * @return Round trip times in nanoseconds
+	 */
+	public LatencyHistogram sharedMemoryRoundTrips(SharedMemoryAddress address) throws IOException {
+		final EchoServer server = new EchoServer(address);
+		server.setVerbose(false);
+		server.connect();
+		Thread loop = new Thread(new Runnable() {
+			public void run() {
+				server.start();
+			}
+		}, "benchmark-server");
+		loop.setDaemon(true);
+		loop.start();
+
+		PingPong client = new PingPong(encode(1), messages);
+		SimpleClientMultiplexer multiplexer = new SimpleClientMultiplexer(client, address);
+		multiplexer.connect();
+		multiplexer.run();//returns once the client closes the connection
+		return client.rtt;
+	}
+
+	/**
+	 * Sends one message at a time from onWrite and waits in onRead for the
+	 * echo, for transports that can only be driven through a multiplexer.
+	 * Runs messages round trips twice, the first time as warm up, then closes
+	 */
+	static class PingPong extends MultiplexAdapter {
+
+		final LatencyHistogram 		rtt = new LatencyHistogram();
+		/* stopped once the round trips are done, over a socket run() doesn't return by itself */
+		SimpleClientMultiplexer 	multiplexer;
+		private final ByteBuffer 	ping;
+		private final ByteBuffer 	pong;
+		private final int 			messages;
+		private int 				received;
+		private boolean 			waiting;
+		private long 				start;
+
+		PingPong(final ByteBuffer ping, final int messages) {
+			this.ping = ping;
+			this.pong = ByteBuffer.allocateDirect(ping.capacity());
+			this.messages = messages;
+		}
+
+		public void onWrite(WritableByteChannel channel, Object attachment) {
+			if (waiting) {
+				return;
+			}
+			try {
+				start = System.nanoTime();
+				ping.clear();
+				while (ping.hasRemaining()) {
+					channel.write(ping);
+				}
+				pong.clear();
+				waiting = true;
+			} catch (IOException e) {
+				System.err.println("Error writing to server: " + e);
+				close((SimpleClientContext)attachment);
+			}
+		}
+
+		public void onRead(ReadableByteChannel channel, Object attachment) {
+			try {
+				if (channel.read(pong) < 0) {
+					System.err.println("Server closed connection");
+					close((SimpleClientContext)attachment);
+					return;
+				}
+			} catch (IOException e) {
+				System.err.println("Error reading from server: " + e);
+				close((SimpleClientContext)attachment);
+				return;
+			}
+			if (pong.hasRemaining()) {
+				return;
+			}
+
+			rtt.record(System.nanoTime() - start);
+			waiting = false;
+			received++;
+			if (received == messages) {//end of the warm up
+				rtt.reset();
+			} else if (received == 2 * messages) {
+				close((SimpleClientContext)attachment);
+			}
+		}
+
+		private void close(SimpleClientContext context) {
+			try {
+				context.close();
+			} catch (IOException e) {
+				System.err.println("Error closing channel: " + e);
+			}
+			if (multiplexer != null) {
+				multiplexer.stop();
+			}
+		}
+	}
+
+	/**
+	 * Builds count messages in the EchoClient's format into a direct buffer
+	 */
+	private ByteBuffer encode(int count) {
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; i < payloadLength; i++) {
+			payload.append((char)('a' + i % 26));
+		}
+
+		StringBuilder text = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= count; i++) {
+			text.append(now).append('*').append(i).append('*').append(payload).append('\n');
+		}
+
+		byte[] bytes = text.toString().getBytes();
+		ByteBuffer encoded = ByteBuffer.allocateDirect(bytes.length);
+		encoded.put(bytes).flip();
+		return encoded;
+	}
+
+	/**
+	 * A channel that hands out a buffer's contents a chunk at a time, the way
+	 * a socket would
+	 */
+	private static class MemoryChannel implements ReadableByteChannel {
+
+		private final ByteBuffer 	source;
+		private final int 			chunk;
+
+		MemoryChannel(final ByteBuffer source, final int chunk) {
+			this.source = source;
+			this.chunk = chunk;
+		}
+
+		void rewind() {
+			source.rewind();
+		}
+
+		boolean hasRemaining() {
+			return source.hasRemaining();
+		}
+
+		public int read(ByteBuffer dst) {
+			int n = Math.min(chunk, Math.min(dst.remaining(), source.remaining()));
+			int limit = source.limit();
+			source.limit(source.position() + n);
+			dst.put(source);
+			source.limit(limit);
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {}
+	}
+
+	private static void print(String transport, LatencyHistogram histogram) {
+		System.out.println(String.format("%-8s %10d %10.2f %10.2f %10.2f %10.2f",
+				transport, histogram.getCount(), histogram.getMean() / 1000.0, histogram.percentile(0.50) / 1000.0,
+				histogram.percentile(0.99) / 1000.0, histogram.percentile(0.999) / 1000.0));
+	}
+
+	/**
+	 * Arguments, all optional: messages per measurement (default 100000),
+	 * payload bytes per message (default 32) and the TCP port (default 8080)
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int[] settings = { 100000, 32, 8080 };
+		for (int i = 0; i < args.length && i < settings.length; i++) {
+			try {
+				settings[i] = Integer.parseInt(args[i]);
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid number: " + args[i]);
+				return;
+			}
+		}
+
+		TransportBenchmark benchmark = new TransportBenchmark(settings[0], settings[1]);
+		try {
+			System.out.println("memory is per message, the others are per round trip");
+			System.out.println(String.format("%-8s %10s %10s %10s %10s %10s", "", "samples", "mean(us)", "p50(us)", "p99(us)", "p999(us)"));
+			print("memory", benchmark.memory());
+			print("local", benchmark.roundTrips(LocalTransport.newAddress()));
+			print("tcp", benchmark.roundTrips(new InetSocketAddress("127.0.0.1", settings[2])));
+			//two spinning threads on too few cores just take turns a time slice at a time
+			boolean spin = Runtime.getRuntime().availableProcessors() > 2;
+			print("shm", benchmark.sharedMemoryRoundTrips(new SharedMemoryAddress(
+					SharedMemoryAddress.defaultDirectory().resolve("orc-benchmark-" + ProcessHandle.current().pid()),
+					SharedMemoryAddress.DEFAULT_CAPACITY, spin)));
+		} catch (IOException e) {
+			System.err.println("IOException: " + e);
+			e.printStackTrace();
+		}
+	}
+}
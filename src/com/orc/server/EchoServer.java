@@ -1,14 +1,25 @@
 package com.orc.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 
+import com.orc.io.AdaptiveReceiveAllocator;
+import com.orc.io.ConnectionRegistry;
+import com.orc.io.FairReadScheduler;
+import com.orc.io.LoopProfiler;
 import com.orc.io.MultiplexAdapter;
+import com.orc.io.OffloadStage;
+import com.orc.io.SharedMemoryAddress;
 import com.orc.io.SimpleClientContext;
 import com.orc.io.SimpleServerMultiplexer;
+import com.orc.io.TlsStage;
+import com.orc.io.jfr.EventTypes;
+import com.orc.io.jfr.PartialWriteEvent;
 
 /**
  * A simple echo server
@@ -19,21 +30,48 @@ import com.orc.io.SimpleServerMultiplexer;
  * The data will not be processed, but it will be writen to System.out for
  * monitoring
  * 
+ * With offload workers the printing and copying of each read is done on an
+ * {@link OffloadStage} worker and only the socket I/O stays on the loop thread
+ * 
+ * An echo the client isn't ready to take is kept in its send buffer and the
+ * server stops reading from that client until it has been written, so a slow
+ * reader is pushed back on rather than having its data dropped.  Only a client
+ * that falls further behind than the maximum send buffer is disconnected.
+ * 
  * @author jeff
  *
  */
-public class EchoServer extends MultiplexAdapter {
+public class EchoServer extends MultiplexAdapter implements OffloadStage.FrameHandler, OffloadStage.ResponseHandler {
 
 	private SimpleServerMultiplexer selector;
-	private ByteBuffer 				buff = ByteBuffer.allocate(8 * 1024);
-	private final int				port;
+	private final AdaptiveReceiveAllocator receiveAllocator = new AdaptiveReceiveAllocator(64, 1024, 64 * 1024, false);
+	private final ConnectionRegistry registry = new ConnectionRegistry(1024);
+	private final SocketAddress		address;
+	private boolean					verbose = true;
+	private LoopProfiler			profiler;
+	private FairReadScheduler		readScheduler;
+	private int						offloadWorkers;
+	private OffloadStage			offload;
+	private TlsStage				tls;
+	private SimpleServerMultiplexer.AcceptErrorListener acceptErrorListener;
+	private int						maxSendBuffer = 8 * 1024 * 1024;
+	
+	private static final int		INITIAL_SEND_BUFFER = 16 * 1024;
 
 	/**
 	 * The constructor will create a new multiplexer and bind to the specified port
 	 * @param port The port the server will listen on
 	 */
 	public EchoServer(final int port) {
-		this.port = port;
+		this(new InetSocketAddress(port));
+	}
+	
+	/**
+	 * @param address The address the server will listen on, TCP or local
+	 * @see com.orc.io.LocalTransport
+	 */
+	public EchoServer(final SocketAddress address) {
+		this.address = address;
 	}
 	
 	/**
@@ -41,10 +79,105 @@ public class EchoServer extends MultiplexAdapter {
 	 * @throws IOException
 	 */
 	public void connect() throws IOException {
-		this.selector = new SimpleServerMultiplexer(this, port);
+		this.selector = new SimpleServerMultiplexer(this, address);
+		this.selector.setReceiveAllocator(receiveAllocator);
+		this.selector.setRegistry(registry);
+		this.selector.setProfiler(profiler);
+		this.selector.setReadScheduler(readScheduler);
+		this.selector.setTlsStage(tls);
+		this.selector.setAcceptErrorListener(acceptErrorListener);
+		if (offloadWorkers > 0) {
+			this.offload = new OffloadStage(offloadWorkers, 1024, 4 * 1024, this, this);
+			this.selector.setOffloadStage(offload);
+		}
 		this.selector.connect();
 	}
 	
+	/**
+	 * Handles reads on a pool of worker threads rather than on the loop thread,
+	 * must be called before connect()
+	 * 
+	 * @param offloadWorkers Number of workers, 0 (the default) to do everything on the loop thread
+	 */
+	public void setOffloadWorkers(int offloadWorkers) {
+		this.offloadWorkers = offloadWorkers;
+	}
+	
+	/**
+	 * Encrypts every client's connection, must be called before connect().
+	 * Ignored over shared memory
+	 * 
+	 * @param tls The stage, null (the default) for plaintext
+	 */
+	public void setTlsStage(TlsStage tls) {
+		this.tls = tls;
+	}
+	
+	/**
+	 * Hears about connections the server failed to accept, must be called
+	 * before connect()
+	 *
+	 * @param acceptErrorListener The listener, null (the default) to write them to System.err
+	 */
+	public void setAcceptErrorListener(SimpleServerMultiplexer.AcceptErrorListener acceptErrorListener) {
+		this.acceptErrorListener = acceptErrorListener;
+	}
+
+	/**
+	 * How far behind a client can fall before it is disconnected, should be
+	 * set before run()
+	 * 
+	 * @param maxSendBuffer Bytes waiting to be echoed to one client, default 8MB
+	 */
+	public void setMaxSendBuffer(int maxSendBuffer) {
+		this.maxSendBuffer = maxSendBuffer;
+	}
+	
+	/**
+	 * @return The open clients by id
+	 */
+	public ConnectionRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * @return The allocator sizing each client's read buffer, for its stats
+	 */
+	public AdaptiveReceiveAllocator getReceiveAllocator() {
+		return receiveAllocator;
+	}
+	
+	/**
+	 * Turns the per-message and per-connection console output on or off.
+	 * 
+	 * Printing every message dominates the cost of an echo, so harnesses that
+	 * measure the server should switch it off
+	 * 
+	 * @param verbose True (the default) to write traffic to System.out
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * Times the server's event loop, must be called before connect()
+	 * 
+	 * @param profiler The profiler to record into, null (the default) for none
+	 */
+	public void setProfiler(LoopProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Shares reads fairly between clients and optionally limits each one's
+	 * rate, must be called before connect()
+	 * 
+	 * @param readScheduler The scheduler, null (the default) to read each client as fast as it sends
+	 */
+	public void setReadScheduler(FairReadScheduler readScheduler) {
+		this.readScheduler = readScheduler;
+	}
+	
 	/**
 	 * Calls selector.run()
 	 * 
@@ -52,60 +185,152 @@ public class EchoServer extends MultiplexAdapter {
 	 * @see SimpleServerMultiplexer
 	 */
 	public void start() {
+		if (offload != null) {
+			offload.start();
+		}
 		selector.run();
 	}
 	
 	/**
-	 * New client has connected, spit out a notification to the screen
+	 * Makes start() return, closing every client and stopping the offload
+	 * workers.  Can be called from any thread
+	 */
+	public void stop() {
+		selector.stop();
+		if (offload != null) {
+			offload.stop();
+		}
+	}
+	
+	/**
+	 * New client has connected, spit out a notification to the screen.  Echoes
+	 * go out as soon as they are written, see {@link SimpleClientContext#setNoDelay(boolean)}
 	 */
 	public void onAccept(ServerSocketChannel channel, Object attachment) {
-		System.out.println("Accepting new client");
+		SimpleClientContext client = (SimpleClientContext)attachment;
+		try {
+			client.setNoDelay(true);
+		} catch (IOException e) {
+			System.err.println("Error setting TCP_NODELAY: " + e);
+		}
+		if (verbose) System.out.println("Accepting new client " + client.id);
 	}
 
 	/**
 	 * Callback from the mulitplexer telling the server that there is data to be read
 	 * 
-	 * The server is set to read up to 8k of data and then spit it back.
+	 * The server reads as much as fits in the client's buffer and then spits it back.
+	 * Each client's buffer grows and shrinks with the size of its reads.
 	 * 
-	 * If there is more than 8k of data the multiplexer will call onRead again once the
-	 * method exits
+	 * If there is more data than fits the multiplexer will call onRead again once the
+	 * method exits.  Nothing is read while an earlier echo is still waiting to be
+	 * written
 	 * 
 	 * @see SimpleServerMultiplexer
+	 * @see AdaptiveReceiveAllocator
 	 */
 	public void onRead(ReadableByteChannel channel, Object attachment) {
 		SimpleClientContext client = (SimpleClientContext)attachment;
-		
+		ByteBuffer buff = client.receiveBuffer.buffer();
 		
 		try {
+			if (!flush(client)) {
+				return;
+			}
+			if (offload != null && !offload.reserve(client, (buff.remaining() + offload.getMaxFrameLength() - 1) / offload.getMaxFrameLength())) {
+				return;//the worker is behind, the stage resumes reading once it catches up
+			}
 			int bytesread = channel.read(buff);
-			if (bytesread<0) onDisconnect(channel);
-			else {
+			client.receiveBuffer.record(bytesread);
+			if (bytesread<0) onDisconnect(client);
+			else if (offload != null) {
 				buff.flip();
-				byte[] b = new byte[buff.limit()];
-				buff.get(b);
-				System.out.println(new String(b));
+				offloadEcho(buff, client);
+			} else {
 				buff.flip();
+				if (verbose) {
+					byte[] b = new byte[buff.limit()];
+					buff.get(b);
+					System.out.println(new String(b));
+					buff.flip();
+				}
+				sendEcho(buff, client);
 			}
-			sendEcho(buff, client);
 		} catch (IOException e) {
 			System.err.println("IOException reading from channel: " + e);
-			onDisconnect(channel);
+			onDisconnect(client);
 		}
 		buff.clear();
 	}
 
+	/**
+	 * Passes a read to the client's offload worker, split into pieces no bigger
+	 * than the stage's frame limit.  onRead reserved room for them before
+	 * reading, a worker that has fallen behind is never waited for here
+	 * 
+	 * @param buff		The data read from the client
+	 * @param client	The client it came from
+	 */
+	private void offloadEcho(ByteBuffer buff, SimpleClientContext client) {
+		int limit = buff.limit();
+		while (buff.position() < limit) {
+			buff.limit(Math.min(limit, buff.position() + offload.getMaxFrameLength()));
+			if (!offload.publish(client, buff)) {
+				throw new IllegalStateException("Offload ring full despite a reservation for client " + client.id);
+			}
+			buff.limit(limit);
+		}
+	}
+	
+	/**
+	 * Called on an offload worker with data read from a client, prints it when
+	 * verbose and copies it to the response to be echoed
+	 */
+	public void onFrame(long connectionId, ByteBuffer frame, ByteBuffer response) {
+		if (verbose) {
+			byte[] b = new byte[frame.remaining()];
+			frame.get(b);
+			System.out.println(new String(b));
+			frame.flip();
+		}
+		response.put(frame);
+	}
+	
+	/**
+	 * Called on the loop thread with an echo prepared by an offload worker
+	 */
+	public void onResponse(SimpleClientContext client, ByteBuffer response) {
+		if (client.channel.isOpen()) {
+			sendEcho(response, client);
+		}
+	}
+	
+	/**
+	 * Callback from the multiplexer once a client that had an echo waiting can
+	 * take more of it
+	 */
+	public void onWrite(WritableByteChannel channel, Object attachment) {
+		SimpleClientContext client = (SimpleClientContext)attachment;
+		try {
+			flush(client);
+		} catch (IOException e) {
+			System.err.println("Error writing to client: " + e);
+			onDisconnect(client);
+		}
+	}
+	
 	/**
 	 * Called when an error is thrown while reading or writing.
 	 * 
 	 * This method will close the channel which will also cancel
 	 * all future callbacks for the client
 	 * 
-	 * @param channel The channel to be closed
+	 * @param client The client to be closed
 	 */
-	public void onDisconnect(Channel channel) {
-		System.out.println("Client Disconnected");
+	public void onDisconnect(SimpleClientContext client) {
+		if (verbose) System.out.println("Client " + client.id + " Disconnected");
 		try {
-			channel.close();
+			client.close();
 		} catch (IOException e) {
 			System.err.println("Error closing channel: " + e);
 		}
@@ -114,11 +339,10 @@ public class EchoServer extends MultiplexAdapter {
 	/**
 	 * Attempts to write to the client
 	 * 
-	 * A more robust model would use the onWrite method and watch for the
-	 * client to be open for writing.  This also involves keeping track of
-	 * how much data was written to the client, etc.
-	 * 
-	 * For this simple program if the client can't keep up, the server drops
+	 * Whatever the client can't take right now is copied to its send buffer,
+	 * behind anything already there, and the client's reads are paused and
+	 * writes asked for until onWrite has flushed it.  If the client can't
+	 * keep up and the buffer would grow past the maximum the server drops
 	 * the client
 	 * 
 	 * @see SimpleServerMultiplexer
@@ -129,10 +353,98 @@ public class EchoServer extends MultiplexAdapter {
 	 */
 	private void sendEcho(ByteBuffer buff, SimpleClientContext client) {
 		try {
-			client.socket.write(buff);
+			if (client.sendBuffer == null || client.sendBuffer.position() == 0) {
+				int requested = buff.remaining();
+				int written = client.channel.write(buff);
+				partialWrite(client, requested, written);
+			}
+			if (buff.hasRemaining()) {
+				queue(buff, client);
+			}
 		} catch (IOException e) {
 			System.err.println("Error writing to client: " + e);
-			onDisconnect(client.socket);
+			onDisconnect(client);
+		}
+	}
+	
+	/**
+	 * Copies the rest of buff to the end of the client's send buffer, doubling
+	 * the buffer when it is full
+	 */
+	private void queue(ByteBuffer buff, SimpleClientContext client) {
+		ByteBuffer pending = client.sendBuffer;
+		boolean wasEmpty = pending == null || pending.position() == 0;
+		int needed = (pending == null ? 0 : pending.position()) + buff.remaining();
+		if (needed > maxSendBuffer) {
+			System.err.println("Client " + client.id + " can't keep up, over " + maxSendBuffer + " bytes waiting");
+			onDisconnect(client);
+			return;
+		}
+		
+		if (pending == null || pending.remaining() < buff.remaining()) {
+			int capacity = pending == null ? INITIAL_SEND_BUFFER : pending.capacity();
+			while (capacity < needed) {
+				capacity = (int)Math.min(2L * capacity, maxSendBuffer);
+			}
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			if (pending != null) {
+				pending.flip();
+				grown.put(pending);
+			}
+			client.sendBuffer = pending = grown;
+		}
+		pending.put(buff);
+		
+		if (wasEmpty) {//one pause per backlog, flush resumes once it is gone
+			client.setWriteInterest(true);
+			client.pauseReads();
+		}
+	}
+	
+	/**
+	 * Writes as much of the client's send buffer as it will take.  Once it is
+	 * empty the client is read from again, and a buffer grown for a burst is
+	 * let go
+	 * 
+	 * @return True if nothing is left waiting
+	 * @throws IOException if the write fails
+	 */
+	private boolean flush(SimpleClientContext client) throws IOException {
+		ByteBuffer pending = client.sendBuffer;
+		if (pending == null || pending.position() == 0) {
+			return true;
+		}
+		
+		pending.flip();
+		int requested = pending.remaining();
+		int written = client.channel.write(pending);
+		partialWrite(client, requested, written);
+		pending.compact();
+		if (pending.position() > 0) {
+			return false;
+		}
+		
+		if (pending.capacity() > INITIAL_SEND_BUFFER) {
+			client.sendBuffer = null;
+		}
+		client.setWriteInterest(false);
+		client.resumeReads();
+		return true;
+	}
+	
+	/**
+	 * Records a PartialWriteEvent if the socket took less than was asked of
+	 * it, whether writing an echo or draining a backlog
+	 */
+	private static void partialWrite(SimpleClientContext client, int requested, int written) {
+		if (written < requested) {
+			PartialWriteEvent partial = EventTypes.PARTIAL_WRITE.isEnabled() ? new PartialWriteEvent() : null;
+			if (partial != null && partial.shouldCommit()) {
+				partial.connectionId = client.id;
+				partial.requested = requested;
+				partial.written = written;
+				partial.commit();
+			}
 		}
 	}
 
@@ -140,19 +452,32 @@ public class EchoServer extends MultiplexAdapter {
 	 * Standard main - creates an instance of {@link EchoServer} and starts it
 	 * 
 	 * @param args 	Optional - the port the server should run on
-	 * 				Default 8080
+	 * 				Default 8080, or shm:name to serve one client over shared memory
+	 * 				and the number of offload workers, default 0
 	 */
 	public static void main(String[] args) {
 		int port = 8080;
-		if (args.length>0) {
+		int workers = 0;
+		SocketAddress address = null;
+		if (args.length>0 && args[0].startsWith("shm:")) {
+			address = new SharedMemoryAddress(args[0].substring(4));
+		} else if (args.length>0) {
 			try {
 				port = Integer.parseInt(args[0]);
 			} catch (NumberFormatException e) {
 				System.err.println("Invalid port: " + args[0]);
 			}
 		}
+		if (args.length>1) {
+			try {
+				workers = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid worker count: " + args[1]);
+			}
+		}
 		
-		EchoServer server = new EchoServer(port);
+		EchoServer server = address != null ? new EchoServer(address) : new EchoServer(port);
+		server.setOffloadWorkers(workers);
 		try {
 			server.connect();
 			server.start();
@@ -0,0 +1,76 @@
+package com.orc.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks how an {@link AdaptiveReceiveBuffer} reacts to the reads it is told
+ * about.  Run by ant test, exits with 1 if a check fails.
+ *
+ * @author jeff
+ *
+ */
+public class AdaptiveReceiveBufferTest {
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		zeroByteReadsDontShrink();
+		smallReadsShrink();
+
+		if (failures > 0) {
+			System.err.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("AdaptiveReceiveBufferTest passed");
+	}
+
+	/**
+	 * A spent read budget, a partial TLS record or a spurious wakeup reads
+	 * nothing, however many of them there are the buffer keeps its size
+	 */
+	static void zeroByteReadsDontShrink() {
+		AdaptiveReceiveBuffer receive = new AdaptiveReceiveAllocator(64, 1024, 64 * 1024, false).newBuffer(null);
+		read(receive, 1024);
+		check(receive.capacity() == 1024, "full read, expected 1024 but capacity is " + receive.capacity());
+		read(receive, 600);
+		int capacity = receive.capacity();
+
+		for (int i = 0; i < 100; i++) {
+			read(receive, 0);
+		}
+		check(receive.capacity() == capacity, "zero byte reads moved capacity from " + capacity + " to " + receive.capacity());
+	}
+
+	/**
+	 * Two reads in a row that would have fitted in a quarter of the buffer
+	 * halve it, without this the check above proves nothing
+	 */
+	static void smallReadsShrink() {
+		AdaptiveReceiveBuffer receive = new AdaptiveReceiveAllocator(64, 1024, 64 * 1024, false).newBuffer(null);
+		read(receive, 600);
+		read(receive, 10);
+		read(receive, 10);
+		read(receive, 10);
+		check(receive.capacity() == 512, "small reads, expected 512 but capacity is " + receive.capacity());
+	}
+
+	/**
+	 * Reads count bytes the way onRead does, then consumes them
+	 */
+	private static void read(AdaptiveReceiveBuffer receive, int count) {
+		ByteBuffer buff = receive.buffer();
+		count = Math.min(count, buff.remaining());
+		for (int i = 0; i < count; i++) {
+			buff.put((byte)'a');
+		}
+		receive.record(count);
+		buff.clear();
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.err.println("FAILED " + message);
+			failures++;
+		}
+	}
+}
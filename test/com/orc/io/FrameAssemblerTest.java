@@ -0,0 +1,207 @@
+package com.orc.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks {@link FrameAssembler} splits a stream back into the frames it was
+ * made of however the reads fall: frames cut at every offset, frames longer
+ * than the buffer streamed as slices, and frames over the maximum length
+ * refused.  Run by ant test, exits with 1 if a check fails.
+ *
+ * @author jeff
+ *
+ */
+public class FrameAssemblerTest {
+
+	private static final byte 	NEWLINE = '\n';
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		splitAtEveryOffset();
+		longerThanBuffer();
+		overMaxLength();
+
+		if (failures > 0) {
+			System.err.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("FrameAssemblerTest passed");
+	}
+
+	/**
+	 * Frames that fit in the buffer, the stream cut into three reads at every
+	 * pair of offsets.  Each frame should arrive whole, as one slice
+	 */
+	static void splitAtEveryOffset() {
+		String[] frames = { "alpha", "be", "", "gamma delta", "e" };
+		byte[] stream = join(frames);
+
+		for (int i = 0; i <= stream.length; i++) {
+			for (int j = i; j <= stream.length; j++) {
+				String when = "cut at " + i + " and " + j;
+				Recorder recorder = new Recorder(when);
+				FrameAssembler assembler = new FrameAssembler(NEWLINE, 64, recorder);
+				ByteBuffer buffer = ByteBuffer.allocate(64);
+				try {
+					int completed = read(assembler, buffer, stream, 0, i)
+							+ read(assembler, buffer, stream, i, j)
+							+ read(assembler, buffer, stream, j, stream.length);
+					check(completed == frames.length, when + ": feed completed " + completed + " frames");
+				} catch (IOException e) {
+					check(false, when + ": " + e);
+					continue;
+				}
+				recorder.expect(frames);
+				check(recorder.slices == frames.length, when + ": " + recorder.slices + " slices, frames fit so expected one each");
+				check(!assembler.isInFrame(), when + ": still in a frame at the end");
+				check(buffer.position() == 0, when + ": " + buffer.position() + " bytes left over");
+			}
+		}
+	}
+
+	/**
+	 * A frame several times the buffer's size between two that fit, read in
+	 * every size up to the buffer's.  The long frame should be streamed as
+	 * first, middle and last slices that join back up to the original
+	 */
+	static void longerThanBuffer() {
+		int capacity = 16;
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			big.append((char)('a' + i % 26));
+		}
+		String[] frames = { "short", big.toString(), "after" };
+		byte[] stream = join(frames);
+
+		for (int readSize = 1; readSize <= capacity; readSize++) {
+			String when = "reads of " + readSize;
+			Recorder recorder = new Recorder(when);
+			FrameAssembler assembler = new FrameAssembler(NEWLINE, 1000, recorder);
+			ByteBuffer buffer = ByteBuffer.allocate(capacity);
+			int completed = 0;
+			boolean streamed = false;
+			try {
+				for (int from = 0; from < stream.length; ) {
+					int to = Math.min(stream.length, from + Math.min(readSize, buffer.remaining()));
+					completed += read(assembler, buffer, stream, from, to);
+					streamed |= assembler.isInFrame();
+					from = to;
+				}
+			} catch (IOException e) {
+				check(false, when + ": " + e);
+				continue;
+			}
+			check(completed == frames.length, when + ": feed completed " + completed + " frames");
+			recorder.expect(frames);
+			check(streamed, when + ": the long frame was never streamed");
+			check(recorder.slices >= frames.length - 1 + big.length() / capacity,
+					when + ": only " + recorder.slices + " slices for a " + big.length() + " byte frame");
+			check(!assembler.isInFrame(), when + ": still in a frame at the end");
+		}
+	}
+
+	/**
+	 * Frames of exactly the maximum are let through, one byte more is refused
+	 * whether it fits in the buffer or has to be streamed
+	 */
+	static void overMaxLength() {
+		int max = 40;
+		for (int capacity : new int[] { 16, 64 }) {
+			String when = "buffer of " + capacity;
+			byte[] atMax = join(new String[] { repeat('x', max) });
+			try {
+				Recorder recorder = new Recorder(when);
+				feedAll(new FrameAssembler(NEWLINE, max, recorder), ByteBuffer.allocate(capacity), atMax);
+				recorder.expect(new String[] { repeat('x', max) });
+			} catch (IOException e) {
+				check(false, when + ": frame of the maximum length refused, " + e);
+			}
+
+			byte[] over = join(new String[] { repeat('y', max + 1) });
+			try {
+				feedAll(new FrameAssembler(NEWLINE, max, new Recorder(when)), ByteBuffer.allocate(capacity), over);
+				check(false, when + ": frame over the maximum length accepted");
+			} catch (IOException expected) {
+			}
+		}
+	}
+
+	/**
+	 * Puts stream[from, to) in the buffer as one read and feeds it
+	 */
+	private static int read(FrameAssembler assembler, ByteBuffer buffer, byte[] stream, int from, int to) throws IOException {
+		buffer.put(stream, from, to - from);
+		buffer.flip();
+		return assembler.feed(buffer);
+	}
+
+	private static void feedAll(FrameAssembler assembler, ByteBuffer buffer, byte[] stream) throws IOException {
+		for (int from = 0; from < stream.length; ) {
+			int to = Math.min(stream.length, from + buffer.remaining());
+			read(assembler, buffer, stream, from, to);
+			from = to;
+		}
+	}
+
+	private static byte[] join(String[] frames) {
+		StringBuilder stream = new StringBuilder();
+		for (String frame : frames) {
+			stream.append(frame).append((char)NEWLINE);
+		}
+		return stream.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	/**
+	 * Joins slices back into frames, checking first and last come in order
+	 */
+	private static class Recorder implements FrameAssembler.SliceListener {
+		private final String 				when;
+		private final List<String> 			frames = new ArrayList<String>();
+		private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+		private boolean 					inFrame;
+		int 								slices;
+
+		Recorder(String when) {
+			this.when = when;
+		}
+
+		public void onSlice(ByteBuffer slice, boolean first, boolean last) {
+			slices++;
+			check(first != inFrame, when + ": slice " + slices + " first=" + first + " while " + (inFrame ? "in" : "between") + " frames");
+			ByteBuffer copy = slice.duplicate();
+			while (copy.hasRemaining()) {
+				current.write(copy.get());
+			}
+			inFrame = !last;
+			if (last) {
+				frames.add(new String(current.toByteArray(), StandardCharsets.US_ASCII));
+				current.reset();
+			}
+		}
+
+		void expect(String[] expected) {
+			check(frames.equals(Arrays.asList(expected)), when + ": got frames " + frames);
+			check(!inFrame, when + ": a frame was started but never finished");
+		}
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.err.println("FAILED " + message);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.orc.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link LongObjectHashMap} against java.util.HashMap, mostly the
+ * backward shift on remove where chains collide and wrap past the end of
+ * the table.  Run by ant test, exits with 1 if a check fails.
+ *
+ * @author jeff
+ *
+ */
+public class LongObjectHashMapTest {
+
+	/* what LongObjectHashMap(8) starts with, 16 slots, growing after 8 entries */
+	private static final int 	SLOTS = 16;
+	private static final long 	GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		collidingChainsWrapAround();
+		randomChurn();
+
+		if (failures > 0) {
+			System.err.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("LongObjectHashMapTest passed");
+	}
+
+	/**
+	 * Keys homed on the last two slots, so their chain wraps round to the
+	 * start of the table, removed in every position of the chain
+	 */
+	static void collidingChainsWrapAround() {
+		List<Long> keys = new ArrayList<Long>();
+		keys.addAll(homedAt(SLOTS - 1, 3));
+		keys.addAll(homedAt(SLOTS - 2, 2));
+		keys.addAll(homedAt(0, 2));//in the way of the wrapped entries
+
+		for (int removed = 0; removed < keys.size(); removed++) {
+			LongObjectHashMap<String> map = new LongObjectHashMap<String>(8);
+			Map<Long, String> expected = new HashMap<Long, String>();
+			for (long key : keys) {
+				put(map, expected, key);
+			}
+			compare(map, expected, keys, "chain of " + keys.size());
+
+			//take one out of the middle of the chain, then the rest in turn
+			for (int i = 0; i < keys.size(); i++) {
+				long key = keys.get((removed + i) % keys.size());
+				check(equal(map.remove(key), expected.remove(key)), "remove " + key + " from the chain");
+				compare(map, expected, keys, "removing " + key + " starting at " + removed);
+			}
+			check(map.isEmpty(), "chain not empty after removing everything");
+		}
+	}
+
+	/**
+	 * Puts and removes over a small range of keys, so the same ones keep
+	 * colliding, and the map grows on the way
+	 */
+	static void randomChurn() {
+		Random random = new Random(4711);
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>(4);
+		Map<Long, String> expected = new HashMap<Long, String>();
+		List<Long> range = new ArrayList<Long>();
+		for (long key = -50; key < 150; key++) {
+			range.add(key);
+		}
+
+		for (int i = 0; i < 100000 && failures == 0; i++) {
+			long key = range.get(random.nextInt(range.size()));
+			if (random.nextInt(3) == 0) {
+				check(equal(map.remove(key), expected.remove(key)), "remove " + key + " at step " + i);
+			} else {
+				put(map, expected, key);
+			}
+			if (i % 1000 == 0) {
+				compare(map, expected, range, "step " + i);
+			}
+		}
+		compare(map, expected, range, "end of churn");
+	}
+
+	private static void put(LongObjectHashMap<String> map, Map<Long, String> expected, long key) {
+		String value = "v" + key + "-" + expected.size();
+		check(equal(map.put(key, value), expected.put(key, value)), "put " + key);
+	}
+
+	private static void compare(LongObjectHashMap<String> map, Map<Long, String> expected, List<Long> keys, String when) {
+		check(map.size() == expected.size(), when + ": size " + map.size() + ", expected " + expected.size());
+		for (long key : keys) {
+			check(equal(map.get(key), expected.get(key)), when + ": get " + key + " returned " + map.get(key)
+					+ ", expected " + expected.get(key));
+		}
+		final int[] visited = new int[1];
+		final Map<Long, String> seen = expected;
+		map.forEach(new LongObjectHashMap.Visitor<String>() {
+			public void visit(long key, String value) {
+				visited[0]++;
+				check(value.equals(seen.get(key)), "forEach saw " + key + "=" + value);
+			}
+		});
+		check(visited[0] == expected.size(), when + ": forEach visited " + visited[0] + ", expected " + expected.size());
+	}
+
+	/**
+	 * @return count keys whose home slot is slot in a table of SLOTS, the
+	 * 			same multiplicative hash the map uses
+	 */
+	private static List<Long> homedAt(int slot, int count) {
+		int shift = 64 - Integer.numberOfTrailingZeros(SLOTS);
+		List<Long> keys = new ArrayList<Long>();
+		for (long key = 1; keys.size() < count; key++) {
+			if ((int)((key * GOLDEN) >>> shift) == slot) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.err.println("FAILED " + message);
+			failures++;
+		}
+	}
+}
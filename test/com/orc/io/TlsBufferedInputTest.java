@@ -0,0 +1,153 @@
+package com.orc.io;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+
+import com.orc.client.EchoClient;
+import com.orc.perf.TlsBenchmark;
+
+/**
+ * Checks that records a {@link TlsChannel} has already read from the socket
+ * are delivered once reads resume, when nothing more will ever arrive to make
+ * the socket readable again.
+ *
+ * The server echoes over TLS through an {@link OffloadStage} with a tiny ring
+ * and a slow worker, reading a few bytes at a time, so the stage keeps
+ * pausing the connection's reads and resuming them from the top of the loop.
+ * The client sends a burst and then only waits for its echoes, so the last
+ * records arrive, and are read off the socket by the TlsChannel, while reads
+ * are paused.  Every line has to come back.  Run by ant test, exits with 1 if
+ * a check fails.
+ *
+ * @author jeff
+ *
+ */
+public class TlsBufferedInputTest extends MultiplexAdapter
+		implements OffloadStage.FrameHandler, OffloadStage.ResponseHandler {
+
+	private static final int 	PORT = 9471;
+	private static final int 	LINES = 2000;
+	private static final int 	READ_SIZE = 64;//far less than a record, so a read leaves most of it buffered
+	private static final long 	FRAME_NANOS = 20000;
+	private static final long 	TIMEOUT_MILLIS = 30000;
+
+	private final OffloadStage 	offload = new OffloadStage(1, 4, READ_SIZE, this, this);
+	private final ByteBuffer 	readBuffer = ByteBuffer.allocate(READ_SIZE);
+
+	public static void main(String[] args) throws Exception {
+		char[] password = "orc-test".toCharArray();
+		SSLContext context = TlsBenchmark.newContext(TlsBenchmark.newKeystore(password), password);
+
+		TlsBufferedInputTest listener = new TlsBufferedInputTest();
+		TlsStage serverTls = new TlsStage(context);
+		final SimpleServerMultiplexer server = new SimpleServerMultiplexer(listener, new InetSocketAddress("127.0.0.1", PORT));
+		server.setTlsStage(serverTls);
+		server.setOffloadStage(listener.offload);
+		server.connect();
+		listener.offload.start();
+		Thread serverLoop = start("test-server", new Runnable() {
+			public void run() {
+				server.run();
+			}
+		});
+
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			lines.append("line ").append(i).append(" of a burst the server can't keep up with\n");
+		}
+		TlsStage clientTls = new TlsStage(context);
+		final EchoClient client = new EchoClient(new InetSocketAddress("127.0.0.1", PORT), null);
+		client.setVerbose(false);
+		client.setExitOnFinish(false);
+		client.setSource(new StringReader(lines.toString()));
+		client.setTlsStage(clientTls);
+		client.connect();
+		Thread clientLoop = start("test-client", new Runnable() {
+			public void run() {
+				client.start();
+			}
+		});
+
+		clientLoop.join(TIMEOUT_MILLIS);
+		boolean finished = client.isFinished();
+		long echoed = client.getProcessedCount();
+		if (!finished) {
+			client.stop();
+		}
+		server.stop();
+		serverLoop.join();
+		listener.offload.stop();
+		clientTls.close();
+		serverTls.close();
+
+		if (!finished) {
+			System.err.println("FAILED only " + echoed + " of " + LINES + " lines came back within " + TIMEOUT_MILLIS + "ms");
+			System.exit(1);
+		}
+		System.out.println("TlsBufferedInputTest passed");
+	}
+
+	/**
+	 * Reads a few bytes at a time, and only once the worker has room for them
+	 */
+	public void onRead(ReadableByteChannel channel, Object attachment) {
+		SimpleClientContext context = (SimpleClientContext)attachment;
+		if (!offload.reserve(context, 1)) {
+			return;//paused, the stage resumes reads once the worker catches up
+		}
+		try {
+			int read = channel.read(readBuffer);
+			if (read < 0) {
+				context.close();
+			} else if (read > 0) {
+				readBuffer.flip();
+				offload.publish(context, readBuffer);
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading: " + e);
+		}
+		readBuffer.clear();
+	}
+
+	public void onFrame(long connectionId, ByteBuffer frame, ByteBuffer response) {
+		LockSupport.parkNanos(FRAME_NANOS);
+		response.put(frame);
+	}
+
+	public void onResponse(SimpleClientContext context, ByteBuffer response) {
+		if (context.sendBuffer == null) {
+			context.sendBuffer = ByteBuffer.allocate(LINES * 64);
+		}
+		context.sendBuffer.put(response);
+		onWrite(context.channel, context);
+	}
+
+	public void onWrite(WritableByteChannel channel, Object attachment) {
+		SimpleClientContext context = (SimpleClientContext)attachment;
+		if (context.sendBuffer == null) {
+			return;
+		}
+		try {
+			context.sendBuffer.flip();
+			channel.write(context.sendBuffer);
+			context.sendBuffer.compact();
+			context.setWriteInterest(context.sendBuffer.position() > 0);
+		} catch (IOException e) {
+			System.err.println("Error writing: " + e);
+		}
+	}
+
+	private static Thread start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}